@@ -40,15 +40,118 @@ const secrets = require('./secrets')
 const express = require('express')
 const bodyParser = require('body-parser')
 const cookieParser = require('cookie-parser')
+const gzip = require('./gzip')
+const idempotency = require('./idempotency')
 const app = express()
+// Express computes an ETag for every response body it sends and answers
+// If-None-Match with 304 Not Modified on its own. We ask for strong validators
+// since the clients compare bodies byte for byte.
+app.set('etag', 'strong')
+app.use(gzip.gzip())
 app.use(cookieParser(secrets.COOKIE))
-app.use(bodyParser.json())
+// inflate (the default) lets the app gzip big request bodies
+app.use(bodyParser.json({inflate: true}))
 app.use(bodyParser.urlencoded({ extended: true }))
+// Replays the first response to POSTs retried with the same Idempotency-Key
+app.use(idempotency.idempotency())
 
 const google_login = require('./google_login')
 const sessions = require('./session_helpers')
 const db = require('./db.js')
 const notifications = require('./notifications')
+const wire = require('./wire')
+const post_events = require('./post_events')
+const post_cache = require('./post_cache')
+
+// How often the post stream sends a comment line when there is nothing else to
+// send. This keeps proxies and the client's read timeout from closing it.
+const STREAM_HEARTBEAT = 25*1000
+
+// Departure time windows are widened to whole minutes, so that clients asking
+// for "now onward" a few seconds apart ask for the same posts, and share one
+// cached feed. A post that left under a minute ago may still be sent.
+const WINDOW_STEP = 60*1000
+
+/*
+ * Marks a response as one the client may keep, but must revalidate (with the
+ * ETag) before every use. It is private because it depends on the session.
+ * Use this on GET handlers whose data the app caches.
+ */
+function revalidate(res) {
+	res.set('Cache-Control', 'private, no-cache')
+}
+
+/*
+ * Sends a successful list of posts, as {result: 1, posts: posts, next: next}
+ * in JSON, or in the compact binary format from wire.js if the client prefers
+ * it. "next" is only used by paged endpoints and may be left out. If the posts
+ * can not be encoded for the wire, they are sent as JSON, which the app also
+ * takes.
+ */
+function send_posts(req, res, posts, next) {
+	res.vary('Accept')
+	const body = wants_wire(req) ? encode_wire(posts, next) : null
+	if (body) {
+		res.type(wire.WIRE_TYPE)
+		res.send(body)
+		return
+	}
+
+	var json = {result: 1, posts: posts}
+	if (next !== undefined) {
+		json.next = next
+	}
+	res.json(json)
+}
+
+// Encodes posts with wire.js, or returns null if one of them can not be
+function encode_wire(posts, next) {
+	try {
+		return wire.encode_posts(posts, next)
+	} catch (err) {
+		console.log("Could not encode posts for the wire, sending JSON:", err.message)
+		return null
+	}
+}
+
+/*
+ * Reads the departure time window from the query string: "from" and "to", in
+ * ms, both optional and inclusive. Returns {from, to}, with undefined for
+ * either one left out, or null if either is not a number. See WINDOW_STEP.
+ */
+function departure_window(req) {
+	const window = {from: undefined, to: undefined}
+	if (req.query.from !== undefined) {
+		window.from = Number(req.query.from)
+		if (!Number.isFinite(window.from)) return null
+		window.from -= window.from % WINDOW_STEP
+	}
+	if (req.query.to !== undefined) {
+		window.to = Number(req.query.to)
+		if (!Number.isFinite(window.to)) return null
+		window.to += (WINDOW_STEP - window.to % WINDOW_STEP) % WINDOW_STEP
+	}
+	return window
+}
+
+// Whether the client prefers the binary format from wire.js to JSON
+function wants_wire(req) {
+	return req.accepts(['application/json', wire.WIRE_TYPE]) === wire.WIRE_TYPE
+}
+
+/*
+ * Builds the same bytes send_posts would send for all posts leaving in window,
+ * for post_cache.js to keep. format is "wire" or "json".
+ */
+function build_feed(format, window) {
+	return db.post.find_all(window).then((posts) => {
+		const body = format === 'wire' ? encode_wire(posts) : null
+		if (body) {
+			return {type: wire.WIRE_TYPE, body: body}
+		}
+		return {type: 'json', body: Buffer.from(JSON.stringify({result: 1, posts: posts}))}
+	})
+}
 
 // For checking that the server is running.
 app.get('/', (req, res) => {
@@ -56,6 +159,16 @@ app.get('/', (req, res) => {
 	res.json({result: 1})
 })
 
+/*
+ * For seeing how well the post cache is doing (see post_cache.js). Returns
+ * {result: 1, feed, by_id}, where feed and by_id each have the hit ratio,
+ * rebuild times and so on of one cache. Like "/", it needs no session.
+ */
+app.get('/stats/post_cache', (req, res) => {
+	res.set('Cache-Control', 'no-store')
+	res.json(Object.assign({result: 1}, post_cache.stats()))
+})
+
 /*
  * POST request to create/register a new user
  * Expects a field "token" in the request body. Verifies with google.
@@ -119,6 +232,28 @@ app.post('/users/logout', (req, res) => {
 	res.json({result: 1})
 })
 
+/*
+ * Renews the session of the user making the request, so it lasts a full
+ * session length from now. The app calls this in the background before its
+ * cookie runs out, so people who keep using the app never have to sign in with
+ * Google again. Only a session that is still valid, for a user that still
+ * exists, can be renewed. Takes no arguments. Returns:
+ *	result: 1 if success, else 0
+ *	exp_time: when the new session runs out, in ms
+ *	error: an error if one occurred.
+ */
+app.post('/users/renew_session', (req, res) => {
+	if (!sessions.validate(req, res)) return
+
+	const id = req.signedCookies.session.id
+	db.user.find_with_id(id).then(() => {
+		const exp_time = sessions.create(res, id)
+		res.json({result: 1, exp_time: exp_time})
+	}, (err) => {
+		res.json({result: 0, error: 'No such user'})
+	})
+})
+
 /*
  * Registers a user. Users should have already attempted a login -- this handler
  * only completes the process of setting up a user. It essentially only adds the
@@ -171,6 +306,32 @@ app.get('/users/by_id/:user_id', (req, res) => {
 	})
 })
 
+/*
+ * Returns many users at once. Expects an array of user ids in the body as
+ * "user_ids". All of them are looked up with one database query.
+ * Returns:
+ *	result: 1 if success, 0 o/w
+ *	error: an error string if result was 0
+ *	users: an array of the user documents that were found. Ids that do not
+ *	       exist are left out, so the client should match users up by _id.
+ */
+app.post('/users/by_ids', (req, res) => {
+	if (!sessions.validate(req, res)) return
+
+	// Check user_ids was sent
+	if (!Array.isArray(req.body.user_ids)) {
+		console.log("Missing user ids to find users by id")
+		res.json({result: 0, error: 'Did not recieve an array of IDs'})
+		return
+	}
+
+	db.user.find_with_ids(req.body.user_ids).then((users) => {
+		res.json({result: 1, users: users})
+	}, (err) => {
+		res.json({result: 0, error: err})
+	})
+})
+
 /*
  * Sets a given users FCM token. This allows us to send push notifications to
  * them. Expects a "token" in the body. Returns the standard {result, error}.
@@ -194,21 +355,166 @@ app.post('/users/register_fcm', (req, res) => {
 })
 
 /*
- * Returns all posts in the database. Takes no arguments. Return JSON object has
- * two fields:
+ * Returns all posts in the database, in departure order. Optional arguments go
+ * in the query string:
+ *	from, to: only send posts leaving in this window (see departure_window).
+ *	          The app asks for from=now, so rides that have left are not sent.
+ * Return JSON object has two fields:
  *	result: 1 if success, else 0
  *	posts: an array of all posts.
+ * The response is sent from post_cache.js when the posts have not changed since
+ * it was last built.
  */
 app.get('/posts/all', (req, res) => {
 	if (!sessions.validate(req, res)) return
+	revalidate(res)
+	res.vary('Accept')
 
-	db.post.find_all().then((posts) => {
-		res.json({result: 1, posts: posts})
+	const window = departure_window(req)
+	if (!window) {
+		res.json({result: 0, error: 'Invalid from or to'})
+		return
+	}
+
+	const format = wants_wire(req) ? 'wire' : 'json'
+	const key = [format, window.from, window.to].join(':')
+	post_cache.feed(key, () => build_feed(format, window)).then((entry) => {
+		post_cache.send(req, res, entry)
+	}, (err) => {
+		return res.status(500).send({result: 0, error : 'database failure'})
+	})
+})
+
+// The most posts /posts/page will send at once, and how many it sends if the
+// client does not say.
+const MAX_PAGE_SIZE = 100
+const DEFAULT_PAGE_SIZE = 20
+
+/*
+ * Returns one page of posts in departure order. All arguments are optional and
+ * go in the query string:
+ *	after_time, after_id: the "next" cursor from the previous page. Leave both
+ *	                      out to get the first page.
+ *	limit: how many posts to send, at most MAX_PAGE_SIZE.
+ *	from, to: only page through posts leaving in this window (see
+ *	          departure_window). Send the same window for every page.
+ * Return JSON object has three fields:
+ *	result: 1 if success, else 0
+ *	posts: an array of at most limit posts
+ *	next: the cursor to pass for the next page, or null if this is the last
+ */
+app.get('/posts/page', (req, res) => {
+	if (!sessions.validate(req, res)) return
+	revalidate(res)
+
+	var limit = Number(req.query.limit) || DEFAULT_PAGE_SIZE
+	limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE))
+
+	var after_time = undefined, after_id = undefined
+	if (req.query.after_time !== undefined || req.query.after_id !== undefined) {
+		after_time = Number(req.query.after_time)
+		after_id = req.query.after_id
+		if (isNaN(after_time) || !/^[0-9a-fA-F]{24}$/.test(after_id)) {
+			res.json({result: 0, error: 'Invalid page cursor'})
+			return
+		}
+	}
+
+	const window = departure_window(req)
+	if (!window) {
+		res.json({result: 0, error: 'Invalid from or to'})
+		return
+	}
+
+	db.post.find_page(after_time, after_id, limit, window).then((posts) => {
+		var next = null
+		if (posts.length === limit) {
+			const last = posts[posts.length - 1]
+			next = {after_time: last.departtime, after_id: last._id}
+		}
+		send_posts(req, res, posts, next)
 	}, (err) => {
 		return res.status(500).send({result: 0, error : 'database failure'})
 	})
 })
 
+/*
+ * Returns the posts that were created or updated since a point in time, so the
+ * client does not have to download every post to refresh. Arguments go in the
+ * query string:
+ *	since: the newest "updatedtime" the client has, in milliseconds.
+ *	from, to: optional, only send posts leaving in this window (see
+ *	          departure_window). Send the window the feed was loaded with, so
+ *	          rides that have left are not merged back into it.
+ * Return JSON object has two fields:
+ *	result: 1 if success, else 0
+ *	posts: an array of the changed posts, oldest change first.
+ */
+app.get('/posts/changes', (req, res) => {
+	if (!sessions.validate(req, res)) return
+
+	const since = Number(req.query.since)
+	if (isNaN(since)) {
+		res.json({result: 0, error: 'No valid since passed'})
+		return
+	}
+
+	const window = departure_window(req)
+	if (!window) {
+		res.json({result: 0, error: 'Invalid from or to'})
+		return
+	}
+
+	db.post.changed_since(since, window).then((posts) => {
+		send_posts(req, res, posts)
+	}, (err) => {
+		return res.status(500).send({result: 0, error : 'database failure'})
+	})
+})
+
+/*
+ * A live stream of changes to posts, as server-sent events. The response never
+ * ends; the client keeps it open for as long as it shows posts. Each event is
+ * one of "create", "update" or "delete" (see post_events.js), with an id the
+ * client can resume from.
+ *
+ * To resume after losing the connection, send the last event id seen in the
+ * Last-Event-ID header (or "last_event_id" in the query string). The events
+ * after it are sent first. If they are too old to send, a "reset" event is
+ * sent instead, meaning the client has to fetch posts again (/posts/changes).
+ * A new stream starts with a "ready" event. Both carry the id to resume from.
+ */
+app.get('/posts/stream', (req, res) => {
+	if (!sessions.validate(req, res)) return
+
+	res.status(200).set({
+		'Content-Type': 'text/event-stream',
+		'Cache-Control': 'no-cache',
+	})
+	res.flushHeaders()
+
+	const last_id = req.get('Last-Event-ID') || req.query.last_event_id
+	const missed = last_id ? post_events.since(last_id) : null
+	if (missed) {
+		missed.forEach((event) => res.write(post_events.format(event)))
+	}
+	else {
+		res.write(post_events.format({
+			id: post_events.latest_id(),
+			type: last_id ? 'reset' : 'ready',
+			data: '{}',
+		}))
+	}
+
+	const send = (event) => res.write(post_events.format(event))
+	const heartbeat = setInterval(() => res.write(': heartbeat\n\n'), STREAM_HEARTBEAT)
+	post_events.subscribe(send)
+	res.on('close', () => {
+		clearInterval(heartbeat)
+		post_events.unsubscribe(send)
+	})
+})
+
 /*
  * Returns one post with the given ID. The id is to be passed in the request
  * body in JSON as the field "post_id". Return value, in JSON, has two fields:
@@ -217,18 +523,27 @@ app.get('/posts/all', (req, res) => {
  */
 app.get('/posts/by_id/:post_id', (req, res) => {
 	if (!sessions.validate(req, res)) return
+	revalidate(res)
 
 	if (!req.params.post_id) {
 		res.json({result: 0, error: 'No post_id passed'})
 		return
 	}
 
-	db.post.find_with_id(req.params.post_id).then((post) => {
-		if (post == null) {
+	// Kept in post_cache.js until the post changes
+	post_cache.post(req.params.post_id, () => {
+		return db.post.find_with_id(req.params.post_id).then((post) => {
+			if (post == null) {
+				return null
+			}
+			return {type: 'json', body: Buffer.from(JSON.stringify({result: 1, post: post}))}
+		})
+	}).then((entry) => {
+		if (entry == null) {
 			return res.status(404).json({result: 0, error: 'post not found'})
 		}
 		else {
-			res.json({result: 1, post: post})
+			post_cache.send(req, res, entry)
 		}
 	}, (err) => {
 		return res.status(500).json({result: 0, error: err})
@@ -236,12 +551,20 @@ app.get('/posts/by_id/:post_id', (req, res) => {
 })
 
 /*
- * Returns result posts of searching
+ * Returns result posts of searching. Like /posts/all, it takes an optional
+ * departure time window as "from" and "to" in the query string.
  */
 app.get('/posts/search/:start/:end', (req, res) => {
 	if (!sessions.validate(req, res)) return
-	
-	db.post.search(req.params).then((posts) => {
+	revalidate(res)
+
+	const window = departure_window(req)
+	if (!window) {
+		res.json({result: 0, error: 'Invalid from or to'})
+		return
+	}
+
+	db.post.search(req.params, window).then((posts) => {
 		res.json({result: 1, posts: posts})
 	}, (err) => {
 		return res.status(500).send({result: 0, error : 'database failure'})
@@ -253,6 +576,7 @@ app.get('/posts/search/:start/:end', (req, res) => {
  */ 
 app.get('/posts/my_page', (req, res) => {
 	if(!sessions.validate(req, res)) return
+	revalidate(res)
 
 	db.post.my_page(req.signedCookies.session.id).then((posts) => {
 		res.json({result: 1, posts: posts})
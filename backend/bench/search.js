@@ -0,0 +1,140 @@
+/*
+ * bench/search.js
+ *
+ * Measures db.post.search against a local mongod holding 100k posts, next to
+ * the old way of searching (two find() queries, the second an $or of $ne
+ * predicates), so changes to search can be compared on real query plans.
+ *
+ * Run it with "npm run bench:search" while mongod is running on localhost. It
+ * uses its own database, ucsharecar_bench, and only seeds it when it does not
+ * already hold exactly POSTS posts, so runs after the first start right away.
+ *
+ * Options, as environment variables:
+ *	BENCH_URL      the database to use
+ *	BENCH_POSTS    how many posts to seed (default 100000)
+ *	BENCH_QUERIES  how many searches to time for each way (default 500)
+ */
+const mongoose = require('mongoose')
+const db = require('../db')
+const Post = require('../models/post')
+const wire = require('../wire')
+
+const URL = process.env.BENCH_URL || 'mongodb://localhost:27017/ucsharecar_bench'
+const POSTS = Number(process.env.BENCH_POSTS) || 100000
+const QUERIES = Number(process.env.BENCH_QUERIES) || 500
+const BATCH = 5000
+
+// Spread departures over the next 60 days
+const DAY = 24*60*60*1000
+const SPREAD = 60*DAY
+
+function pick(list) {
+	return list[Math.floor(Math.random() * list.length)]
+}
+
+function random_post(now) {
+	const start = pick(wire.LOCATIONS)
+	const end = pick(wire.LOCATIONS)
+	const has_driver = Math.random() < 0.5
+	return {
+		posttime: now,
+		departtime: now + Math.floor(Math.random() * SPREAD),
+		start: start,
+		end: end,
+		memo: 'Benchmark post',
+		totalseats: 1 + Math.floor(Math.random() * 6),
+		driverneeded: !has_driver,
+		driver: has_driver ? new mongoose.Types.ObjectId() : undefined,
+		uploader: new mongoose.Types.ObjectId(),
+		passengers: [],
+	}
+}
+
+async function seed() {
+	const count = await Post.countDocuments()
+	if (count === POSTS) {
+		console.log("Using the", count, "posts already in", URL)
+		return
+	}
+
+	console.log("Seeding", POSTS, "posts into", URL)
+	await Post.deleteMany({})
+	const now = Date.now()
+	for (var done = 0; done < POSTS; done += BATCH) {
+		const batch = []
+		for (var i = 0; i < Math.min(BATCH, POSTS - done); i++) {
+			batch.push(random_post(now))
+		}
+		await Post.insertMany(batch)
+	}
+	await Post.syncIndexes()
+}
+
+// How db.post.search worked before it was one aggregation
+async function old_search(start, end) {
+	const same = await Post.find({"$and": [{start: start}, {end: end}]}).sort({departtime: 1})
+	const start_end = await Post.find({"$or": [
+		{"$and": [{start: start}, {end: {"$ne": end}}]},
+		{"$and": [{start: {"$ne": start}}, {end: end}]},
+	]}).sort({departtime: 1})
+	return {same: same, start: start_end, end: []}
+}
+
+function percentile(sorted, fraction) {
+	const index = Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)
+	return sorted[Math.max(0, index)]
+}
+
+async function time(name, search) {
+	const times = []
+	var found = 0
+	for (var i = 0; i < QUERIES; i++) {
+		const start = pick(wire.LOCATIONS)
+		const end = pick(wire.LOCATIONS)
+		const began = process.hrtime()
+		const groups = await search(start.replace(/ /g, '_'), end.replace(/ /g, '_'))
+		const elapsed = process.hrtime(began)
+		times.push(elapsed[0] * 1000 + elapsed[1] / 1e6)
+		found += groups.same.length + groups.start.length + groups.end.length
+	}
+	times.sort((a, b) => a - b)
+	console.log(name.padEnd(12),
+		"p50", percentile(times, 0.5).toFixed(1)+"ms",
+		"p95", percentile(times, 0.95).toFixed(1)+"ms",
+		"p99", percentile(times, 0.99).toFixed(1)+"ms",
+		"avg results", Math.round(found / QUERIES))
+}
+
+// Prints the stages of the plan MongoDB picks for the search's first $match
+async function show_plan() {
+	const explained = await Post.collection.find(
+		{"$or": [{start: wire.LOCATIONS[0]}, {end: wire.LOCATIONS[1]}]})
+		.sort({departtime: 1}).explain()
+	const stages = []
+	const walk = (stage) => {
+		if (!stage) return
+		stages.push(stage.stage + (stage.indexName ? '('+stage.indexName+')' : ''))
+		walk(stage.inputStage)
+		for (const input of stage.inputStages || []) walk(input)
+	}
+	walk(explained.queryPlanner.winningPlan)
+	console.log("search plan:", stages.join(' <- '))
+}
+
+async function main() {
+	await new Promise((resolve) => db.connect(URL, resolve))
+	await seed()
+	await show_plan()
+
+	// Warm up the cache so the first way timed is not penalized
+	await time('warm up', db.post.search)
+	await time('old search', (start, end) => old_search(start.replace(/_/g, ' '), end.replace(/_/g, ' ')))
+	await time('search', db.post.search)
+
+	await mongoose.disconnect()
+}
+
+main().catch((err) => {
+	console.log(err)
+	process.exit(1)
+})
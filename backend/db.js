@@ -19,6 +19,9 @@
  * comments for what data will be sent.
  *
  * This module has to be initialized with db.connect(). See below.
+ *
+ * Every write to a post is published to post_events.js once it is saved, for
+ * the live stream of post changes. New write paths must do the same.
  */
 
 // Set up mongoose
@@ -31,6 +34,33 @@ const User = require('./models/user.js')
 const Post = require('./models/post')
 const Report = require('./models/report')
 
+const post_events = require('./post_events')
+
+// The fields of a post the app reads. Search results are cut down to these.
+const SEARCH_FIELDS = {
+	posttime: 1, departtime: 1, updatedtime: 1, start: 1, end: 1, memo: 1,
+	driverneeded: 1, driver: 1, uploader: 1, passengers: 1, totalseats: 1,
+}
+
+/*
+ * Turns a departure time window {from, to} into a query on departtime. Both
+ * are in ms and both are optional, as is the window. from and to are
+ * inclusive. Returns a new object, so callers can add to it.
+ *
+ * Every post query that takes a window has departtime in an index right after
+ * any equality fields, so the range is read straight from the index.
+ */
+function departure_range(window) {
+	const range = {}
+	if (window && window.from !== undefined) {
+		range["$gte"] = window.from
+	}
+	if (window && window.to !== undefined) {
+		range["$lte"] = window.to
+	}
+	return Object.keys(range).length === 0 ? {} : {departtime: range}
+}
+
 module.exports = {
 
 	/*
@@ -117,6 +147,19 @@ module.exports = {
 			})
 		},
 
+		// Finds every user whose id is in the array userids with one query and
+		// sends the resulting user objects via promise. Ids that do not match a
+		// user are simply left out of the result.
+		find_with_ids: (userids) => {
+			return User.find({"_id": {"$in": userids}}).then((docs) => {
+				return docs
+			}, (err) => {
+				console.log("Error trying to find users", userids)
+				console.log(err)
+				throw err
+			})
+		},
+
 		// Sets the Firebase Cloud Messaging token for a user with a given id.
 		// Resulting promise is a result of Mongoose save() fn.
 		set_fcm_token: (userid, token) => {
@@ -131,25 +174,31 @@ module.exports = {
 		},
 
 		// Accepts a list of user ids. Finds the FCM token of all those users
-		// and returns it via promise as an array of string tokens.
+		// and returns it via promise as an array of string tokens. Users who
+		// never sent a token are left out. The (_id, fcm_token) index in
+		// models/user.js holds everything this needs, so it can be answered
+		// without reading any users.
 		all_fcm_with_ids: (userids) => {
-			return User.find({"_id": {"$in": userids}}).then((docs) => {
-				return docs.map(doc => doc.fcm_token)
-			}, (err) => {
-				console.log("Could not find many users")
-				console.log(err)
-				throw err
-			})
+			return User.find({"_id": {"$in": userids}, fcm_token: {"$exists": true}})
+				.select({_id: 0, fcm_token: 1}).lean()
+				.then((docs) => {
+					return docs.map(doc => doc.fcm_token)
+				}, (err) => {
+					console.log("Could not find many users")
+					console.log(err)
+					throw err
+				})
 		},
 	},
 
 	post: {
 
-		// Returns all posts in the db now
-		find_all: () => {
+		// Returns all posts in the db now, or only those leaving in window (see
+		// departure_range)
+		find_all: (window) => {
 			return new Promise((resolve, reject) => {
 				const timeSort = {departtime : 1}
-				Post.find().sort(timeSort).exec((err, posts) => {
+				Post.find(departure_range(window)).sort(timeSort).exec((err, posts) => {
 					if(err) {
 						console.log("Could not get all posts")
 						console.log(err)
@@ -162,6 +211,48 @@ module.exports = {
 			})
 		},
 
+		// Returns up to "limit" posts in departure order, starting after the
+		// post with departtime after_time and id after_id. Leave after_time and
+		// after_id undefined to get the first page. Ties on departtime are
+		// broken by _id, so every post appears on exactly one page. window
+		// optionally limits the pages to posts leaving in it (see
+		// departure_range).
+		find_page: (after_time, after_id, limit, window) => {
+			var query = departure_range(window)
+			if (after_time !== undefined && after_id !== undefined) {
+				query["$or"] = [
+					{departtime: {"$gt": after_time}},
+					{departtime: after_time, _id: {"$gt": after_id}},
+				]
+			}
+			return Post.find(query).sort({departtime: 1, _id: 1}).limit(limit)
+				.then((posts) => {
+					return posts
+				}, (err) => {
+					console.log("Could not get a page of posts after", after_time, after_id)
+					console.log(err)
+					throw err
+				})
+		},
+
+		// Returns all posts written at or after the time "since" (in ms), oldest
+		// change first. Clients pass the newest updatedtime they have seen, so
+		// they may get that post again, which is harmless when merging by _id.
+		// window optionally limits them to posts leaving in it (see
+		// departure_range), as for the feed they are merged into.
+		changed_since: (since, window) => {
+			var query = departure_range(window)
+			query.updatedtime = {"$gte": since}
+			return Post.find(query).sort({updatedtime: 1})
+				.then((posts) => {
+					return posts
+				}, (err) => {
+					console.log("Could not get posts changed since", since)
+					console.log(err)
+					throw err
+				})
+		},
+
 		// Returns the specific post with post_id
 		find_with_id: (post_id) => {
 			return Post.findById(post_id).then((post) => {
@@ -179,38 +270,40 @@ module.exports = {
 			})
 		},
 
-		// Returns posts which the start value matches
-		search: (start_end) => {
-			return new Promise((resolve, reject) => {
-				const timeSort = {departtime : 1}
-				var same_val = [ ]
-				var start_val = [ ]
-				var end_val = [ ]
-				var start = start_end.start.replace('_', ' ')
-				var end = start_end.end.replace('_', ' ')
-
-				Post.find({"$and" : [{start : start}, {end : end}]}).sort(timeSort).exec((err, posts) => {
-					if(err) {
-						console.log("Could not get all posts")
-						console.log(err)
-						reject(err)
-					}
-					else {
-						same_val = posts
-						Post.find({"$or" : [{"$and" : [{start : start}, {end : {"$ne" : end}}]}, {"$and" : [{start : {"$ne" : start}}, {end : end}]}]}).sort(timeSort).exec((err, posts) => {
-
-							if(err) {
-								console.log("Could not get all posts")
-								console.log(err)
-								reject(err)
-							}
-							else {
-								start_val = posts
-								resolve({same : same_val, start : start_val, end : end_val})
-							}
-						})
-					}
-				})
+		/*
+		 * Searches for posts by where they start and end, in one round trip.
+		 * Resolves to {same, start, end}: posts that match both, posts that
+		 * match only the start, and posts that match only the end, each in
+		 * departure order. Locations come from the URL, with "_" for spaces.
+		 * window optionally limits it to posts leaving then (see
+		 * departure_range).
+		 *
+		 * The first $match is an $or of the start and the end, which MongoDB
+		 * answers from the (start, departtime) and (end, departtime) indexes
+		 * and merges in departure order, so no collection scan and no sort in
+		 * memory. $facet then splits the matches into the three groups.
+		 */
+		search: (start_end, window) => {
+			const start = start_end.start.replace(/_/g, ' ')
+			const end = start_end.end.replace(/_/g, ' ')
+			var match = departure_range(window)
+			match["$or"] = [{start: start}, {end: end}]
+
+			return Post.aggregate([
+				{"$match": match},
+				{"$sort": {departtime: 1}},
+				{"$project": SEARCH_FIELDS},
+				{"$facet": {
+					same: [{"$match": {start: start, end: end}}],
+					start: [{"$match": {start: start, end: {"$ne": end}}}],
+					end: [{"$match": {start: {"$ne": start}, end: end}}],
+				}},
+			]).then((results) => {
+				return results[0]
+			}, (err) => {
+				console.log("Could not search posts from", start, "to", end)
+				console.log(err)
+				throw err
 			})
 		},
 
@@ -258,6 +351,7 @@ module.exports = {
 			const post = new Post(post_data)
 			return post.save().then((doc) => {
 				console.log("Created post w/ id", doc.id)
+				post_events.publish('create', doc)
 				return doc.id
 			}, (err) => {
 				console.log("Failed to save post to DB")
@@ -271,8 +365,11 @@ module.exports = {
 				driver: user_id,
 				totalseats: avail,
 				driverneeded: false,
-			}).then(() => {
+			}, {new: true}).then((post) => {
 				console.log("Successfully added driver", user_id, "to", post_id)
+				if (post) {
+					post_events.publish('update', post)
+				}
 			}, (err) => {
 				console.log("Could not add driver", user_id, "to", post_id)
 				console.log(err)
@@ -297,6 +394,7 @@ module.exports = {
 				post.passengers.push(user_id)
 				return post.save().then(() => {
 					console.log("Successfully added", user_id, "to", post_id, "as a passenger")
+					post_events.publish('update', post)
 				}, (err) => {
 					console.log("Could not add passenger", user_id, "to", post_id)
 					console.log(err)
@@ -318,6 +416,7 @@ module.exports = {
 			}
 			return post.save().then(() => {
 				console.log("Updated post", post._id)
+				post_events.publish('update', post)
 			}, (err) => {
 				console.log("Failed to update post", post._id)
 				console.log(err)
@@ -353,6 +452,7 @@ module.exports = {
 							reject(err)
 						}
 						else {
+							post_events.publish('update', post)
 							resolve(post)
 						}
 					})
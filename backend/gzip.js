@@ -0,0 +1,69 @@
+/*
+ * gzip.js
+ *
+ * Express middleware that gzips response bodies for clients that accept it.
+ * Post lists are very repetitive JSON, so they shrink a lot, which matters on
+ * campus cellular links.
+ *
+ * Bodies smaller than the threshold are sent as they are, since compressing
+ * something like {result: 1} only makes it bigger. The body is compressed
+ * before Express computes its ETag, so the ETag and the 304 handling in
+ * res.send keep working.
+ *
+ * Request bodies are the other direction. body-parser already inflates gzip
+ * and deflate request bodies on its own, so nothing is needed here for that.
+ */
+const zlib = require('zlib')
+
+// Bodies under this many bytes are not compressed.
+const DEFAULT_THRESHOLD = 1024
+
+function gzip(threshold) {
+	threshold = threshold || DEFAULT_THRESHOLD
+
+	return (req, res, next) => {
+		const send = res.send
+
+		res.send = function(body) {
+			// Objects go through res.json, which calls back into res.send
+			// with a string. Only strings and Buffers are handled here.
+			if (typeof body !== 'string' && !Buffer.isBuffer(body)) {
+				return send.call(this, body)
+			}
+
+			// A response can vary on the encoding even when this one is
+			// not compressed.
+			res.vary('Accept-Encoding')
+
+			const buf = Buffer.isBuffer(body) ? body : Buffer.from(body, 'utf8')
+			if (buf.length < threshold
+					|| res.get('Content-Encoding')
+					|| !req.acceptsEncodings('gzip')) {
+				return send.call(this, body)
+			}
+
+			// A string body makes Express default the type to html, so set the
+			// type now, before the body becomes a Buffer.
+			if (!res.get('Content-Type')) {
+				res.type('html')
+			}
+
+			zlib.gzip(buf, (err, zipped) => {
+				if (err) {
+					console.log("Could not gzip response, sending it as is:", err)
+					return send.call(res, body)
+				}
+				res.set('Content-Encoding', 'gzip')
+				send.call(res, zipped)
+			})
+			return this
+		}
+
+		next()
+	}
+}
+
+module.exports = {
+	gzip: gzip,
+	DEFAULT_THRESHOLD: DEFAULT_THRESHOLD,
+}
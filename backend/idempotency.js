@@ -0,0 +1,122 @@
+/*
+ * idempotency.js
+ *
+ * Express middleware that makes POST handlers safe to retry. The app retries
+ * writes like /posts/create and /posts/add_passenger when they time out, but a
+ * timeout does not mean the server never got the request. Without this, a slow
+ * link can create the same post twice.
+ *
+ * The client sends a random Idempotency-Key header with a write, and the same
+ * key again on every retry of it. The first request with a key runs as usual
+ * and its response is remembered. Later requests with that key get the same
+ * response back, with an Idempotent-Replayed header, and the handler does not
+ * run again. If the first request is still running, the retry waits for it.
+ *
+ * Keys belong to the logged in user, so one user can not replay another's
+ * response. Requests without a session are passed through, and the handler
+ * rejects them as usual. Responses with a 5xx status are not remembered, so
+ * those can be retried for real.
+ *
+ * Responses are kept in memory for a day. This is enough for retries, which
+ * come seconds apart, but keys do not survive a restart of the server.
+ */
+
+// How long a response is kept for replays
+const DEFAULT_TTL = 24*60*60*1000
+// Most responses kept at once. The oldest are dropped first.
+const MAX_ENTRIES = 10000
+
+const HEADER = 'Idempotency-Key'
+const REPLAYED_HEADER = 'Idempotent-Replayed'
+
+function idempotency(ttl, max_entries) {
+	ttl = ttl || DEFAULT_TTL
+	max_entries = max_entries || MAX_ENTRIES
+
+	// Maps user + path + key to {expires, done, response}. A Map iterates in
+	// insertion order, so the oldest entries come first.
+	const entries = new Map()
+
+	const expire = () => {
+		const now = Date.now()
+		for (const [id, entry] of entries) {
+			if (entry.expires > now && entries.size <= max_entries) break
+			entries.delete(id)
+		}
+	}
+
+	const replay = (res, response) => {
+		res.status(response.status)
+		res.set(REPLAYED_HEADER, 'true')
+		if (response.type) res.set('Content-Type', response.type)
+		res.send(response.body)
+	}
+
+	const middleware = (req, res, next) => {
+		const key = req.get(HEADER)
+		const session = req.signedCookies && req.signedCookies.session
+		if (req.method !== 'POST' || !key || !session || !session.id) {
+			return next()
+		}
+
+		const id = session.id + ' ' + req.path + ' ' + key
+		const existing = entries.get(id)
+		if (existing && existing.expires > Date.now()) {
+			console.log("Replaying request with idempotency key", key)
+			existing.done.then((response) => {
+				// The first request never answered, so this one runs instead
+				if (!response) return next()
+				replay(res, response)
+			})
+			return
+		}
+
+		var finish
+		const entry = {
+			expires: Date.now() + ttl,
+			done: new Promise((resolve) => { finish = resolve }),
+		}
+		entries.delete(id)
+		entries.set(id, entry)
+		expire()
+
+		// Record the body the handler sends. res.json calls back into res.send
+		// with a string, so only strings and Buffers are recorded.
+		const send = res.send
+		res.send = function(body) {
+			if (typeof body === 'string' || Buffer.isBuffer(body)) {
+				res.send = send
+				if (res.statusCode < 500) {
+					const response = {
+						status: res.statusCode,
+						type: res.get('Content-Type'),
+						body: body,
+					}
+					entry.response = response
+					finish(response)
+				}
+			}
+			return send.call(this, body)
+		}
+
+		// If nothing was recorded, forget the key and let waiting retries run
+		const forget = () => {
+			if (entry.response) return
+			if (entries.get(id) === entry) entries.delete(id)
+			finish(null)
+		}
+		res.on('finish', forget)
+		res.on('close', forget)
+
+		next()
+	}
+
+	return middleware
+}
+
+module.exports = {
+	idempotency: idempotency,
+	HEADER: HEADER,
+	REPLAYED_HEADER: REPLAYED_HEADER,
+	DEFAULT_TTL: DEFAULT_TTL,
+}
@@ -4,17 +4,39 @@
  * This simply sets up all the required components to run the server, and then
  * does so. See all the other files require()'d below.
  */
+const http = require('http')
 const app = require('./app')
 const db = require('./db')
 const notifications = require('./notifications')
+const query_plans = require('./query_plans')
 const port = 8000
 
+// The app sends every request over a few HTTP/1.1 connections that it keeps
+// open and reuses, and it holds idle ones for minutes. Node closes idle
+// connections after 5 seconds by default, which makes the app's next request
+// on one fail and start over on a new connection. So idle connections are kept
+// this long instead. headersTimeout must be longer than keepAliveTimeout.
+const KEEP_ALIVE_TIMEOUT = 5*60*1000
+
 // Where did all the code go? It's now in app.js.
 // This structure makes it easier to unit test.
 
 db.connect()
 notifications.initialize()
-app.listen(port, (err) => {
+
+// Warn about any query that would read a whole collection (see query_plans.js)
+query_plans.check().then((scans) => {
+	scans.forEach((scan) => {
+		console.log('Query', scan.name, 'scans a whole collection:', scan.stages.join(' < '))
+	})
+}, (err) => {
+	console.log('Could not check query plans')
+	console.log(err)
+})
+const server = http.createServer(app)
+server.keepAliveTimeout = KEEP_ALIVE_TIMEOUT
+server.headersTimeout = KEEP_ALIVE_TIMEOUT + 1000
+server.listen(port, (err) => {
 	if (err) {
 		return console.log('Failed to start:', err)
 	}
@@ -18,7 +18,35 @@ const postSchema = new Schema({
 	driverneeded: {
 		type: Boolean,
 		default: true,
-	}
+	},
+	// Last time the post was written, so clients can sync only what changed
+	updatedtime: {type: Number, default: Date.now, index: true},
+})
+
+// Supports paging through posts in departure order (see db.post.find_page), and
+// reading the posts that leave in a window of time (db.post.find_all)
+postSchema.index({departtime: 1, _id: 1})
+// Support db.post.search, which looks posts up by start or by end and wants
+// them in departure order
+postSchema.index({start: 1, departtime: 1})
+postSchema.index({end: 1, departtime: 1})
+// Support db.post.my_page, which looks posts up by passenger or by driver, in
+// departure order. Most posts are still looking for a driver, so only posts
+// with one are in the driver index.
+postSchema.index({passengers: 1, departtime: 1})
+postSchema.index({driver: 1, departtime: 1}, {
+	partialFilterExpression: {driver: {"$exists": true}},
+})
+
+// Stamp every write with the time it happened. This covers save() and the
+// findByIdAndUpdate() calls in db.js.
+postSchema.pre('save', function(next) {
+	this.updatedtime = Date.now()
+	next()
+})
+postSchema.pre('findOneAndUpdate', function(next) {
+	this.update({}, {"$set": {updatedtime: Date.now()}})
+	next()
 })
 
 module.exports = mongoose.model('post', postSchema)
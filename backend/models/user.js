@@ -15,6 +15,12 @@ const userSchema = new Schema({
 	fcm_token: String,
 })
 
+// Supports db.user.all_fcm_with_ids. Only users with a token are in it, and it
+// holds the token, so notifications are sent without reading any users.
+userSchema.index({_id: 1, fcm_token: 1}, {
+	partialFilterExpression: {fcm_token: {"$exists": true}},
+})
+
 userSchema.statics.findByEmail = function(email) {
 	return this.findOne({ email: email })
 }
@@ -8,6 +8,11 @@
  * There are two methods exported to send a notification. The more useful one is
  * send_by_postid(), which allows you to notify everyone connected to a post
  * (except one person, optionally).
+ *
+ * send_by_postid() also puts a compact delta of the post in the message: its
+ * driver, seat count and passengers as they were saved. The app applies it to
+ * the copy of the post it already has, so it can show the change without
+ * asking the server for the post again. See post_delta().
  */
 const admin = require('firebase-admin')
 const secrets = require('./secrets')
@@ -24,12 +29,38 @@ function initialize() {
 	console.log("Initialized Firebase service")
 }
 
+/*
+ * Builds the delta for a post, as sent in a notification. FCM data messages
+ * may only hold strings, and the whole message must stay under 4KB, so:
+ *	updatedtime: when the post was saved, in ms. The app uses it to skip
+ *	             deltas older than the copy it has.
+ *	driver: the driver's user id, or "" if there is none
+ *	driverneeded: "1" or "0"
+ *	totalseats: the seat count
+ *	passengers: the passengers' user ids, joined with ","
+ * These are the fields that joining a ride changes. The whole list of
+ * passengers is sent rather than just the new one, so applying the same delta
+ * twice, or after a newer copy of the post, does no harm.
+ */
+function post_delta(post) {
+	return {
+		updatedtime: String(post.updatedtime || 0),
+		driver: post.driver ? String(post.driver) : '',
+		driverneeded: post.driverneeded ? '1' : '0',
+		totalseats: String(post.totalseats || 0),
+		passengers: (post.passengers || []).map(String).join(','),
+	}
+}
+
 /*
  * This method sends a notification to all user IDs specified, with data
  * specifying which post changed. It will look up the FCM tokens required to
  * send the notification itself.
+ *
+ * delta is optional, and is a set of string fields from post_delta() to send
+ * along with the post id.
  */
-function send(user_ids, post_id) {
+function send(user_ids, post_id, delta) {
 	// send_by_postid may sometimes give us an empty list, which would be an
 	// error. skip if no users to notify.
 	if (user_ids.length === 0) {
@@ -40,13 +71,17 @@ function send(user_ids, post_id) {
 	console.log("Sending a notification to user array for post", post_id)
 	return db.user.all_fcm_with_ids(user_ids)
 		.then((tokens) => {
+			// None of them have the app set up for notifications
+			if (tokens.length === 0) {
+				return
+			}
 			return admin.messaging().sendToDevice(tokens, {
 				// The FCM Service on the Android app is only spawned to deal
 				// with data messages. "Notification" messages get handled by
 				// the OS for some reason.
-				data: {
-					post_id: post_id,
-				}
+				data: Object.assign({}, delta, {
+					post_id: String(post_id),
+				}),
 			})
 		})
 		.catch((error) => {
@@ -77,8 +112,9 @@ function send_by_postid(post_id, except_user_id) {
 				users.push(post.driver)
 			}
 
-			// Send notification
-			return send(users, post_id)
+			// Send notification. The post was read after the change was
+			// saved, so the delta has it.
+			return send(users, post_id, post_delta(post))
 		})
 		.catch((error) => {
 			console.log("Could not find users to notify for post", post_id)
@@ -89,5 +125,6 @@ function send_by_postid(post_id, except_user_id) {
 module.exports = {
 	send: send,
 	send_by_postid: send_by_postid,
+	post_delta: post_delta,
 	initialize: initialize,
 }
@@ -0,0 +1,236 @@
+/*
+ * post_cache.js
+ *
+ * This module keeps ready-to-send responses for /posts/all and
+ * /posts/by_id in memory. Posts are read far more often than they change, and
+ * without this every read goes to MongoDB and turns the posts into JSON again.
+ * With it, a read after the first one sends bytes that are already built, and
+ * already gzipped for clients that take gzip.
+ *
+ * The feed is kept once per format (JSON, or the binary format from wire.js)
+ * and departure time window, up to MAX_FEEDS of them. Single posts are kept by
+ * id, up to MAX_POSTS of them. Both drop the least recently used first.
+ *
+ * Entries are dropped when a post changes. db.js publishes every write to a
+ * post to post_events.js (create, add_driver, add_passenger, update and
+ * update_post), and this module listens there: a change to a post drops every
+ * feed and that one post, and nothing else. A rebuild that was already running
+ * when its entry was dropped may have read the post from before the change, so
+ * its result is sent to whoever asked for it, but not kept.
+ *
+ * When many requests miss at once, one rebuild runs and they all wait for it.
+ *
+ * stats() reports how often each cache was hit and how long rebuilds take.
+ * app.js sends it from GET /stats/post_cache.
+ */
+const crypto = require('crypto')
+const zlib = require('zlib')
+const gzip = require('./gzip')
+const post_events = require('./post_events')
+
+// Most feeds and single posts kept at once
+const MAX_FEEDS = 50
+const MAX_POSTS = 1000
+
+// A cache of entries by key. Each entry is {type, body, etag, gzipped,
+// gzipped_etag}, where gzipped is null if the body is too small to compress.
+class Cache {
+	constructor(max_entries) {
+		this.max_entries = max_entries
+		// A Map iterates in insertion order, so the least recently used come first
+		this.entries = new Map()
+		// Rebuilds in progress, by key
+		this.pending = new Map()
+		this.reset_stats()
+	}
+
+	reset_stats() {
+		this.hits = 0
+		this.waits = 0
+		this.misses = 0
+		this.rebuild_ms_total = 0
+		this.rebuild_ms_last = 0
+	}
+
+	/*
+	 * Resolves to the entry for key. If there is none, build() is called, and
+	 * should resolve to {type, body} with body a Buffer, or to null if there is
+	 * nothing to send. Nulls and failures are not kept.
+	 */
+	get(key, build) {
+		const entry = this.entries.get(key)
+		if (entry) {
+			this.hits++
+			this.entries.delete(key)
+			this.entries.set(key, entry)
+			return Promise.resolve(entry)
+		}
+
+		const running = this.pending.get(key)
+		if (running) {
+			this.waits++
+			return running
+		}
+
+		this.misses++
+		const started = Date.now()
+		const rebuild = Promise.resolve().then(build).then(make_entry).then((entry) => {
+			const ms = Date.now() - started
+			this.rebuild_ms_total += ms
+			this.rebuild_ms_last = ms
+			// Only keep it if it was not dropped while we were building it
+			if (this.pending.get(key) === rebuild) {
+				this.pending.delete(key)
+				if (entry) {
+					this.store(key, entry)
+				}
+			}
+			return entry
+		}, (err) => {
+			if (this.pending.get(key) === rebuild) {
+				this.pending.delete(key)
+			}
+			throw err
+		})
+		this.pending.set(key, rebuild)
+		return rebuild
+	}
+
+	store(key, entry) {
+		this.entries.set(key, entry)
+		if (this.entries.size > this.max_entries) {
+			this.entries.delete(this.entries.keys().next().value)
+		}
+	}
+
+	drop(key) {
+		this.entries.delete(key)
+		this.pending.delete(key)
+	}
+
+	clear() {
+		this.entries.clear()
+		this.pending.clear()
+	}
+
+	stats() {
+		const requests = this.hits + this.waits + this.misses
+		var bytes = 0
+		this.entries.forEach((entry) => {
+			bytes += entry.body.length + (entry.gzipped ? entry.gzipped.length : 0)
+		})
+		return {
+			entries: this.entries.size,
+			bytes: bytes,
+			requests: requests,
+			hits: this.hits,
+			// Missed, but a rebuild was already running
+			waits: this.waits,
+			misses: this.misses,
+			hit_ratio: requests === 0 ? 0 : this.hits / requests,
+			rebuild_ms_last: this.rebuild_ms_last,
+			rebuild_ms_average: this.misses === 0 ? 0 : this.rebuild_ms_total / this.misses,
+		}
+	}
+}
+
+// Same form as the strong ETags app.js has Express make for every other
+// response, so a client sees one kind of validator whether or not the cache
+// was hit.
+function etag_of(buf) {
+	const hash = crypto.createHash('sha1').update(buf).digest('base64').substring(0, 27)
+	return '"' + buf.length.toString(16) + '-' + hash + '"'
+}
+
+// Turns a built {type, body} into an entry, gzipping the body if gzip.js would
+// have.
+function make_entry(built) {
+	if (!built) {
+		return null
+	}
+	const entry = {
+		type: built.type,
+		body: built.body,
+		etag: etag_of(built.body),
+		gzipped: null,
+		gzipped_etag: null,
+	}
+	if (built.body.length < gzip.DEFAULT_THRESHOLD) {
+		return entry
+	}
+	return new Promise((resolve, reject) => {
+		zlib.gzip(built.body, (err, zipped) => {
+			if (err) {
+				console.log("Could not gzip cached response, keeping it as is:", err)
+			}
+			else {
+				entry.gzipped = zipped
+				entry.gzipped_etag = etag_of(zipped)
+			}
+			resolve(entry)
+		})
+	})
+}
+
+const feed_cache = new Cache(MAX_FEEDS)
+const post_cache = new Cache(MAX_POSTS)
+
+post_events.subscribe((event) => {
+	feed_cache.clear()
+	post_cache.drop(event.post_id)
+})
+
+// Resolves to the entry for a feed. key names its format and window. See
+// Cache.get.
+function feed(key, build) {
+	return feed_cache.get(key, build)
+}
+
+// Resolves to the entry for one post. See Cache.get.
+function post(post_id, build) {
+	return post_cache.get(String(post_id), build)
+}
+
+/*
+ * Sends an entry, gzipped if the client takes it. The ETag is set here so
+ * Express does not hash the body again, and it still answers a matching
+ * If-None-Match with a 304.
+ */
+function send(req, res, entry) {
+	res.vary('Accept-Encoding')
+	res.type(entry.type)
+	if (entry.gzipped && req.acceptsEncodings('gzip')) {
+		res.set('Content-Encoding', 'gzip')
+		res.set('ETag', entry.gzipped_etag)
+		res.send(entry.gzipped)
+	}
+	else {
+		res.set('ETag', entry.etag)
+		res.send(entry.body)
+	}
+}
+
+function stats() {
+	return {
+		feed: feed_cache.stats(),
+		by_id: post_cache.stats(),
+	}
+}
+
+// Drops everything and zeroes the stats. For tests.
+function reset() {
+	feed_cache.clear()
+	post_cache.clear()
+	feed_cache.reset_stats()
+	post_cache.reset_stats()
+}
+
+module.exports = {
+	feed: feed,
+	post: post,
+	send: send,
+	stats: stats,
+	reset: reset,
+	MAX_FEEDS: MAX_FEEDS,
+	MAX_POSTS: MAX_POSTS,
+}
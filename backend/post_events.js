@@ -0,0 +1,127 @@
+/*
+ * post_events.js
+ *
+ * This module keeps a short log of changes to posts and hands each change to
+ * whoever is listening. It feeds the live stream of post changes in app.js
+ * (GET /posts/stream), so clients get pushed what changed instead of all of
+ * them polling for it.
+ *
+ * db.js calls publish() after every write to a post. There are three types of
+ * event:
+ *	create: a new post, sent as {post: ...}
+ *	update: a post that changed, sent as the whole post, {post: ...}
+ *	delete: a post that is gone, sent as {post_id: ...}
+ *
+ * Every event has an id "<boot>.<seq>", where boot is different every time
+ * the server starts and seq counts up from 1. A client that loses its
+ * connection sends back the last id it saw, and since() gives it the events it
+ * missed. That only works while they are still in the log. If they are not,
+ * or the id is from before a restart, since() returns null and the client has
+ * to fetch the posts again.
+ *
+ * The event data is turned into JSON once, when it is published, not once for
+ * every client.
+ */
+const EventEmitter = require('events')
+
+// How many events are kept for clients that reconnect.
+const DEFAULT_LOG_SIZE = 1000
+
+const BOOT = Date.now().toString(36)
+
+const emitter = new EventEmitter()
+// One listener per connected client, so there is no sensible limit
+emitter.setMaxListeners(0)
+
+var log = []
+var seq = 0
+var log_size = DEFAULT_LOG_SIZE
+
+function event_id(n) {
+	return BOOT + '.' + n
+}
+
+/*
+ * Records an event and sends it to every subscriber. post is a mongoose
+ * document, or for "delete", the id of the post.
+ */
+function publish(type, post) {
+	const data = type === 'delete'
+		? {post_id: String(post)}
+		: {post: post}
+
+	seq++
+	const event = {
+		seq: seq,
+		id: event_id(seq),
+		type: type,
+		post_id: type === 'delete' ? String(post) : String(post._id),
+		data: JSON.stringify(data),
+	}
+	log.push(event)
+	if (log.length > log_size) {
+		log.shift()
+	}
+	emitter.emit('event', event)
+}
+
+/*
+ * Returns the events after the one with id last_id, oldest first, or null if
+ * some of them are no longer known.
+ */
+function since(last_id) {
+	const parts = String(last_id).split('.')
+	const n = Number(parts[1])
+	if (parts.length !== 2 || parts[0] !== BOOT || !Number.isInteger(n) || n > seq) {
+		return null
+	}
+	if (log.length > 0 && n < log[0].seq - 1) {
+		return null
+	}
+	return log.filter((event) => event.seq > n)
+}
+
+// The id of the newest event, for clients that start listening now.
+function latest_id() {
+	return event_id(seq)
+}
+
+// fn is called with each event as it is published. Events are
+// {seq, id, type, post_id, data}, with data already in JSON.
+function subscribe(fn) {
+	emitter.on('event', fn)
+}
+
+function unsubscribe(fn) {
+	emitter.removeListener('event', fn)
+}
+
+function subscriber_count() {
+	return emitter.listenerCount('event')
+}
+
+/*
+ * Formats an event as a server-sent event. Multi-line data would need one
+ * "data:" line per line, but JSON.stringify never makes newlines.
+ */
+function format(event) {
+	return 'id: ' + event.id + '\nevent: ' + event.type + '\ndata: ' + event.data + '\n\n'
+}
+
+// Clears the log, and optionally changes its size. For tests.
+function reset(size) {
+	log = []
+	log_size = size || DEFAULT_LOG_SIZE
+}
+
+module.exports = {
+	publish: publish,
+	since: since,
+	latest_id: latest_id,
+	subscribe: subscribe,
+	unsubscribe: unsubscribe,
+	subscriber_count: subscriber_count,
+	format: format,
+	reset: reset,
+	DEFAULT_LOG_SIZE: DEFAULT_LOG_SIZE,
+}
@@ -0,0 +1,133 @@
+/*
+ * query_plans.js
+ *
+ * Checks that every query db.js makes is answered from an index. Each entry in
+ * SHAPES below is one of the queries in db.js, with made up values. check()
+ * asks MongoDB to explain() each one, and reports the ones whose winning plan
+ * reads the whole collection (a COLLSCAN), since those get slower with every
+ * post and user we add.
+ *
+ * index.js runs the check when the server starts and logs what it finds. The
+ * tests fail if it finds anything. When you add a query to db.js, add its
+ * shape here too, and an index for it in models/.
+ *
+ * Writes by _id (findByIdAndUpdate, save) always use the _id index and are left
+ * out. So is the reports collection, which is only ever written to.
+ */
+const mongoose = require('mongoose')
+const User = require('./models/user')
+const Post = require('./models/post')
+
+const some_id = () => new mongoose.Types.ObjectId()
+
+const SHAPES = {
+	'user.check_registered': () =>
+		User.findOne({email: 'someone@ucsc.edu'}).explain(),
+	'user.find_with_id': () =>
+		User.findOne({_id: some_id()}).explain(),
+	'user.find_with_ids': () =>
+		User.find({_id: {"$in": [some_id(), some_id()]}}).explain(),
+	'user.all_fcm_with_ids': () =>
+		User.find({_id: {"$in": [some_id(), some_id()]}, fcm_token: {"$exists": true}})
+			.select({_id: 0, fcm_token: 1}).explain(),
+
+	'post.find_all': () =>
+		Post.find().sort({departtime: 1}).explain(),
+	'post.find_all (window)': () =>
+		Post.find({departtime: {"$gte": Date.now()}}).sort({departtime: 1}).explain(),
+	'post.find_page (first page)': () =>
+		Post.find({}).sort({departtime: 1, _id: 1}).limit(20).explain(),
+	'post.find_page (later pages)': () =>
+		Post.find({"$or": [
+			{departtime: {"$gt": Date.now()}},
+			{departtime: Date.now(), _id: {"$gt": some_id()}},
+		]}).sort({departtime: 1, _id: 1}).limit(20).explain(),
+	'post.find_page (window)': () =>
+		Post.find({
+			departtime: {"$gte": Date.now(), "$lte": Date.now() + 7*24*60*60*1000},
+			"$or": [
+				{departtime: {"$gt": Date.now()}},
+				{departtime: Date.now(), _id: {"$gt": some_id()}},
+			],
+		}).sort({departtime: 1, _id: 1}).limit(20).explain(),
+	'post.changed_since': () =>
+		Post.find({updatedtime: {"$gte": Date.now()}}).sort({updatedtime: 1}).explain(),
+	'post.changed_since (window)': () =>
+		Post.find({
+			departtime: {"$gte": Date.now()},
+			updatedtime: {"$gte": Date.now()},
+		}).sort({updatedtime: 1}).explain(),
+	'post.find_with_id': () =>
+		Post.findOne({_id: some_id()}).explain(),
+	// $match and $sort at the start of a pipeline are planned like a find()
+	'post.search': () =>
+		Post.find({"$or": [{start: 'College Nine'}, {end: 'Science Hill'}]})
+			.sort({departtime: 1}).explain(),
+	'post.search (window)': () =>
+		Post.find({
+			departtime: {"$gte": Date.now()},
+			"$or": [{start: 'College Nine'}, {end: 'Science Hill'}],
+		}).sort({departtime: 1}).explain(),
+	'post.my_page': () => {
+		const user_id = some_id()
+		return Post.find({"$or": [{passengers: user_id}, {driver: user_id}]})
+			.sort({departtime: 1}).explain()
+	},
+}
+
+// Returns the stage names in the winning plans of an explain() result,
+// wherever they are. Its shape differs between find() and aggregate() and
+// between MongoDB versions, so this just looks everywhere.
+function winning_stages(explained) {
+	const stages = []
+	const collect = (node) => {
+		if (Array.isArray(node)) {
+			node.forEach(collect)
+		}
+		else if (node && typeof node === 'object') {
+			if (typeof node.stage === 'string') {
+				stages.push(node.stage)
+			}
+			Object.keys(node).forEach((key) => collect(node[key]))
+		}
+	}
+	const find = (node) => {
+		if (Array.isArray(node)) {
+			node.forEach(find)
+		}
+		else if (node && typeof node === 'object') {
+			Object.keys(node).forEach((key) => {
+				if (key === 'winningPlan') collect(node[key])
+				else if (key !== 'rejectedPlans') find(node[key])
+			})
+		}
+	}
+	find(explained)
+	return stages
+}
+
+/*
+ * Explains every query shape once the indexes are built. Resolves to a list of
+ * {name, stages} for the shapes that scan a whole collection, which is empty
+ * if all is well.
+ */
+function check() {
+	return Promise.all([User.init(), Post.init()]).then(() => {
+		const names = Object.keys(SHAPES)
+		return Promise.all(names.map((name) => SHAPES[name]())).then((results) => {
+			const scans = []
+			results.forEach((explained, i) => {
+				const stages = winning_stages(explained)
+				if (stages.includes('COLLSCAN')) {
+					scans.push({name: names[i], stages: stages})
+				}
+			})
+			return scans
+		})
+	})
+}
+
+module.exports = {
+	check: check,
+	SHAPES: SHAPES,
+}
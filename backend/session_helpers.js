@@ -8,25 +8,29 @@
  * are not encrypted over HTTPS, a MITM could still attack our app if run over
  * HTTP.
  *
- * Cookie invalidation is mainly handled by cookies expiring.
+ * Cookie invalidation is mainly handled by cookies expiring. Sessions slide:
+ * the app renews its cookie before it runs out (see /users/renew_session), so
+ * a session only really ends after a full timeout without the app being used.
  */
 
 module.exports = {
 	// Create sets up a signed cookie that saves the id of the currently logged
 	// in user. It also saves data about its start and expiration date in JSON
-	// along with the actual cookie expiration date.
+	// along with the actual cookie expiration date. Returns the expiration date.
 	create: (res, id, timeout) => {
 		// Default timeout will be 24 hours (* 60 min/hr * 60 seconds/min * 1000 ms/s)
 		timeout = timeout || 24*60*60*1000
+		const exp_time = Date.now() + timeout
 		res.cookie('session', {
 				'id': id,
 				'start_time': Date.now(),
-				'exp_time': Date.now() + timeout,
+				'exp_time': exp_time,
 			},
 			{
 				maxAge: timeout,
 				signed: true,
 			})
+		return exp_time
 	},
 	destroy: (res) => {
 		res.clearCookie('session')
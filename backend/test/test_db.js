@@ -1,5 +1,7 @@
 const mongoose = require('mongoose')
 const db = require('../db.js')
+const post_events = require('../post_events')
+const query_plans = require('../query_plans')
 
 describe('database manages users', function(){
 	before(function(done) {
@@ -31,6 +33,27 @@ describe('database manages users', function(){
 			done()
 		}).catch(done)
 	})
+	it('retrieves many users by id at once', function(done) {
+		var ids = []
+		db.user.create({
+			name: "Jane Smith",
+			email: "janesmith@example.com",
+		}).then((id) => {
+			ids.push(id)
+			return db.user.create({
+				name: "Jim Smith",
+				email: "jimsmith@example.com",
+			})
+		}).then((id) => {
+			ids.push(id)
+			return db.user.find_with_ids(ids)
+		}).then((users) => {
+			if (users.length !== 2) {
+				return done(new Error("Expected 2 users, got "+users.length))
+			}
+			done()
+		}).catch(done)
+	})
 	it('adds a phone number to a user', function(done) {
 		db.user.create({
 			name: "John Smith",
@@ -148,6 +171,29 @@ describe('database stores and retrieves posts', function() {
 			done(err)
 		})
 	})
+	it('pages through posts without repeats', function(done) {
+		const departtime = Date.now()
+		const make = () => db.post.create({
+			start: 'start',
+			end: 'end',
+			departtime: departtime,
+			totalseats: 5,
+			memo: 'Same departure time',
+		})
+		var seen = {}
+		Promise.all([make(), make(), make()]).then(() => {
+			return db.post.find_page(departtime - 1, '000000000000000000000000', 2)
+		}).then((page) => {
+			if (page.length !== 2) throw new Error("First page had "+page.length+" posts")
+			page.forEach((post) => seen[post._id] = true)
+			const last = page[page.length - 1]
+			return db.post.find_page(last.departtime, last._id, 2)
+		}).then((page) => {
+			if (page.length < 1) throw new Error("Second page was empty")
+			if (page.some((post) => seen[post._id])) throw new Error("Post repeated across pages")
+			done()
+		}).catch(done)
+	})
 	it('adds a driver', function(done) {
 		var created_id, driver_added = "5b4a39ff74a2d138b93b2273"
 		db.post.create({
@@ -239,4 +285,110 @@ describe('database stores and retrieves posts', function() {
 			done()
 		}).catch(done)
 	})
+	it('searches posts into same, start and end groups', function(done) {
+		const now = Date.now()
+		Promise.all([
+			db.post.create({start: 'San Jose Diridon Station', end: 'Science Hill', departtime: now + 2}),
+			db.post.create({start: 'San Jose Diridon Station', end: 'Science Hill', departtime: now + 1}),
+			db.post.create({start: 'San Jose Diridon Station', end: 'College Ten', departtime: now}),
+			db.post.create({start: 'College Ten', end: 'Science Hill', departtime: now}),
+			db.post.create({start: 'College Ten', end: 'College Nine', departtime: now}),
+		]).then(() => {
+			return db.post.search({start: 'San_Jose_Diridon_Station', end: 'Science_Hill'})
+		}).then((groups) => {
+			if (groups.same.length !== 2 || groups.start.length !== 1 || groups.end.length !== 1)
+				throw new Error("Wrong group sizes: "+groups.same.length+" same, "+
+					groups.start.length+" start, "+groups.end.length+" end")
+			if (groups.same[0].departtime > groups.same[1].departtime)
+				throw new Error("Same group is not in departure order")
+			if (groups.end[0].start !== 'College Ten')
+				throw new Error("End group has the wrong post: "+JSON.stringify(groups.end[0]))
+			if ('__v' in groups.same[0])
+				throw new Error("Search results were not projected")
+			done()
+		}).catch(done)
+	})
+	it('finds only posts leaving in a time window', function(done) {
+		// Far from the departure times of the other tests' posts
+		const base = Date.now() + 365*24*60*60*1000
+		const window = {from: base + 10, to: base + 20}
+		Promise.all([
+			db.post.create({start: 'Beach Boardwalk', end: 'College Nine', departtime: base}),
+			db.post.create({start: 'Beach Boardwalk', end: 'College Nine', departtime: base + 10}),
+			db.post.create({start: 'Beach Boardwalk', end: 'College Nine', departtime: base + 20}),
+			db.post.create({start: 'Beach Boardwalk', end: 'College Nine', departtime: base + 30}),
+		]).then(() => {
+			return db.post.find_all(window)
+		}).then((posts) => {
+			if (posts.map((post) => post.departtime - base).join() !== '10,20')
+				throw new Error("Expected the posts leaving at +10 and +20, got: "+
+					posts.map((post) => post.departtime - base))
+			return db.post.search({start: 'Beach_Boardwalk', end: 'College_Nine'}, window)
+		}).then((groups) => {
+			if (groups.same.length !== 2)
+				throw new Error("Search found "+groups.same.length+" posts in the window, not 2")
+			return db.post.find_page(undefined, undefined, 10, {from: base + 25})
+		}).then((posts) => {
+			if (posts.length !== 1 || posts[0].departtime !== base + 30)
+				throw new Error("Paged past the start of the window")
+			return db.post.changed_since(0, window)
+		}).then((posts) => {
+			if (posts.map((post) => post.departtime - base).sort().join() !== '10,20')
+				throw new Error("Expected changes to the posts leaving at +10 and +20, got: "+
+					posts.map((post) => post.departtime - base))
+			done()
+		}).catch(done)
+	})
+	it('publishes post writes for the live stream', function(done) {
+		const before = post_events.latest_id()
+		var post_id
+		db.post.create({memo: 'Streamed post', totalseats: 2}).then((id) => {
+			post_id = id
+			return db.post.add_driver(id, 2, "5b4a39ff74a2d138b93b9291")
+		}).then(() => {
+			const events = post_events.since(before)
+			if (!events || events.map((e) => e.type).join() !== 'create,update')
+				throw new Error("Expected a create then an update, got: "+JSON.stringify(events))
+			const updated = JSON.parse(events[1].data).post
+			if (updated._id != post_id || updated.driverneeded)
+				throw new Error("Update event does not have the new driver: "+events[1].data)
+			done()
+		}).catch(done)
+	})
+	it('asks streams to refetch when events are no longer kept', function() {
+		post_events.reset(2)
+		const first = post_events.latest_id()
+		post_events.publish('delete', 'a')
+		const second = post_events.latest_id()
+		post_events.publish('delete', 'b')
+		post_events.publish('delete', 'c')
+		try {
+			if (post_events.since(first) !== null)
+				throw new Error("Resumed from an event that fell out of the log")
+			if (post_events.since(second).length !== 2)
+				throw new Error("Did not resume from the oldest kept event")
+			if (post_events.since('0.1') !== null)
+				throw new Error("Resumed from an id from another run of the server")
+		} finally {
+			post_events.reset()
+		}
+	})
+})
+
+describe('database queries', function() {
+	before(function(done) {
+		db.connect('mongodb://localhost:27017/ucsharecar_test', done)
+	})
+	after(function() {
+		mongoose.connection.db.dropDatabase();
+	})
+	it('are all answered from an index', function(done) {
+		query_plans.check().then((scans) => {
+			if (scans.length > 0) {
+				return done(new Error("These queries scan a whole collection: "
+					+scans.map((scan) => scan.name).join(', ')))
+			}
+			done()
+		}).catch(done)
+	})
 })
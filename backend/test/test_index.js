@@ -1,9 +1,11 @@
 const request = require('supertest')
+const http = require('http')
 const mongoose = require('mongoose')
 const app = require('../app')
 const db = require('../db.js')
 const google_login = require('../google_login')
 const session = require('../session_helpers')
+const notifications = require('../notifications')
 
 describe('server handlers', function() {
 	before(function(done) {
@@ -83,6 +85,32 @@ describe('server handlers', function() {
 							done)
 				})
 		})
+		it('renews sessions', function(done) {
+			var agent = request.agent(app)
+			google_login.verify = async () => { return {name: 'Joe', email: 'joe@x.com'}}
+			agent
+				.post('/users/login')
+				.send({token: 'bad_token'})
+				.set('Accept', 'application/json')
+				.expect(200)
+				.end(function(err, res) {
+					if (err) return done(err)
+					const before = Date.now()
+					agent
+						.post('/users/renew_session')
+						.set('Accept', 'application/json')
+						.expect(200)
+						.expect('set-cookie', /^session=/)
+						.end(function(err, res) {
+							if (err) return done(err)
+							if (res.body.result !== 1)
+								return done(new Error("Result was not 1: "+res.body.error))
+							if (!(res.body.exp_time > before))
+								return done(new Error("New session expires at "+res.body.exp_time))
+							done()
+						})
+				})
+		})
 		it('retrieves users by id', function(done) {
 			var agent = request.agent(app)
 			db.user.create({
@@ -116,6 +144,37 @@ describe('server handlers', function() {
 					})
 			}).catch(done)
 		})
+		it('retrieves many users by id', function(done) {
+			var agent = request.agent(app)
+			db.user.create({
+				name: "John Smith",
+				email: "jsmith@example.com",
+			}).then((lookup_id) => {
+				agent
+					.post('/users/login')
+					.send({token: 'bad_token'})
+					.set('Accept', 'application/json')
+					.expect(200)
+					.end(function(err, res){
+						agent
+							.post('/users/by_ids')
+							.send({user_ids: [lookup_id]})
+							.set('Accept', 'application/json')
+							.expect(200)
+							.end(function(err, res) {
+								if (err) return done(err)
+								if (res.body.result !== 1) {
+									return done(new Error("Result was not 1: "+res.body.error))
+								}
+								if (res.body.users.length !== 1 || res.body.users[0]._id != lookup_id) {
+									return done(new Error("Got wrong users, wanted ["
+										+lookup_id+"] but got "+JSON.stringify(res.body.users)))
+								}
+								done()
+							})
+					})
+			}).catch(done)
+		})
 		it('tells users their id when not registered', function(done) {
 			google_login.verify = async () => {
 				return {
@@ -210,6 +269,26 @@ describe('server handlers', function() {
 					done()
 				})
 		})
+		it('replays creates retried with the same idempotency key', function(done) {
+			const create = () => agent
+				.post('/posts/create')
+				.send({post: {
+					memo: 'Sent twice over a bad link',
+				}})
+				.set('Accept', 'application/json')
+				.set('Idempotency-Key', 'retry-test-key')
+				.expect(200)
+			// The retry may arrive while the first request is still running
+			Promise.all([create(), create()]).then(([first, second]) => {
+				if (first.body.result !== 1) return done(new Error("Result was not 1"))
+				if (first.body.post_id !== second.body.post_id)
+					return done(new Error("Retry created a second post"))
+				const replayed = [first, second].filter((res) => res.headers['idempotent-replayed'] === 'true')
+				if (replayed.length !== 1)
+					return done(new Error("Expected one replayed response, got "+replayed.length))
+				done()
+			}, done)
+		})
 		it('retrieves posts by id', function(done) {
 			agent
 				.post('/posts/create')
@@ -247,6 +326,123 @@ describe('server handlers', function() {
 					done()
 				})
 		})
+		it('answers unchanged post lists with 304', function(done) {
+			agent
+				.get('/posts/all')
+				.set('Accept', 'application/json')
+				.expect(200)
+				.end(function(err, res) {
+					if (err) return done(err)
+					if (!res.headers.etag)
+						return done(new Error("No ETag on post list"))
+					agent
+						.get('/posts/all')
+						.set('Accept', 'application/json')
+						.set('If-None-Match', res.headers.etag)
+						.expect(304, done)
+				})
+		})
+		it('serves posts from the cache until one changes', function(done) {
+			const hits = () => agent.get('/stats/post_cache').expect(200)
+				.then((res) => res.body.feed.hits)
+			const all = () => agent.get('/posts/all').set('Accept', 'application/json').expect(200)
+			var before
+			all().then(() => hits()).then((n) => {
+				before = n
+				return all()
+			}).then((res) => {
+				if (!/^"[0-9a-f]+-[^"]+"$/.test(res.headers.etag))
+					throw new Error("Cached feed did not have a strong ETag: " + res.headers.etag)
+				return hits()
+			}).then((n) => {
+				if (n !== before + 1)
+					throw new Error("Second read of the feed was not a cache hit")
+				return agent.post('/posts/create')
+					.send({post: {memo: 'Should drop the cached feed'}})
+					.set('Accept', 'application/json')
+					.expect(200)
+			}).then((res) => {
+				const post_id = res.body.post_id
+				return all().then((res) => {
+					if (!res.body.posts.some((post) => post._id == post_id))
+						throw new Error("Cached feed was served after a new post")
+					done()
+				})
+			}).catch(done)
+		})
+		it('returns only posts changed since a time', function(done) {
+			const before = Date.now()
+			agent
+				.post('/posts/create')
+				.send({post: {
+					memo: 'A brand new post',
+				}})
+				.set('Accept', 'application/json')
+				.expect(200)
+				.then((res) => {
+					var post_id = res.body.post_id
+					agent
+						.get('/posts/changes?since='+before)
+						.set('Accept', 'application/json')
+						.expect(200)
+						.end(function(err, res) {
+							if (err) return done(err)
+							if (res.body.result !== 1)
+								return done(new Error("Result was not 1"))
+							if (!res.body.posts.some((post) => post._id == post_id))
+								return done(new Error("New post missing from changes"))
+							if (res.body.posts.some((post) => post.updatedtime < before))
+								return done(new Error("Got a post that did not change"))
+							done()
+						})
+				})
+		})
+		it('sends binary post lists when asked', function(done) {
+			const wire = require('../wire')
+			agent
+				.get('/posts/all')
+				.set('Accept', wire.WIRE_TYPE)
+				.buffer(true)
+				.parse((res, callback) => {
+					var chunks = []
+					res.on('data', (chunk) => chunks.push(chunk))
+					res.on('end', () => callback(null, Buffer.concat(chunks)))
+				})
+				.expect(200)
+				.expect('Content-Type', /x-ucsharecar-posts/)
+				.end(function(err, res) {
+					if (err) return done(err)
+					if (res.body.slice(0, 3).toString() !== 'UCW')
+						return done(new Error("Binary response is missing its magic"))
+					done()
+				})
+		})
+		it('gzips large responses but not small ones', function(done) {
+			agent
+				.post('/posts/create')
+				.send({post: {
+					memo: 'This memo is long enough to be worth compressing. '.repeat(50),
+				}})
+				.set('Accept', 'application/json')
+				.set('Accept-Encoding', 'gzip')
+				.expect(200)
+				.then((res) => {
+					if (res.headers['content-encoding'])
+						return done(new Error("Small response was compressed"))
+					agent
+						.get('/posts/by_id/'+res.body.post_id)
+						.set('Accept', 'application/json')
+						.set('Accept-Encoding', 'gzip')
+						.expect(200)
+						.expect('Content-Encoding', 'gzip')
+						.end(function(err, res) {
+							if (err) return done(err)
+							if (res.body.result !== 1)
+								return done(new Error("Result was not 1"))
+							done()
+						})
+				})
+		})
 		it('adds a passenger successfully', function(done) {
 			agent
 				.post('/posts/create')
@@ -405,14 +601,66 @@ describe('server handlers', function() {
 						})
 				})
 		})
+		it('streams new posts to connected clients', function(done) {
+			var stream = null
+			var created = false
+			const finish = (err) => {
+				if (stream) stream.abort()
+				stream = null
+				done(err)
+			}
+			request(app)
+				.post('/users/login')
+				.send({token: 'bad_token'})
+				.then((res) => {
+					const cookie = res.headers['set-cookie'].map((c) => c.split(';')[0]).join('; ')
+					stream = http.get({port: 8000, path: '/posts/stream', headers: {Cookie: cookie}}, (res) => {
+						if (res.headers['content-type'] !== 'text/event-stream')
+							return finish(new Error("Stream has type "+res.headers['content-type']))
+						var received = ''
+						res.setEncoding('utf8')
+						res.on('data', (chunk) => {
+							received += chunk
+							// Only write once we are subscribed
+							if (!created && received.includes('event: ready')) {
+								created = true
+								agent.post('/posts/create').send({post: {memo: 'Live post'}}).catch(finish)
+							}
+							if (stream && /event: create\ndata: .*Live post/.test(received))
+								finish()
+						})
+					})
+					stream.on('error', (err) => { if (stream) finish(err) })
+				})
+				.catch(finish)
+		})
+		it('builds string-only notification deltas from saved posts', function(done) {
+			db.post.create({memo: 'Delta', totalseats: 3, driverneeded: false})
+				.then((id) => db.post.find_with_id(id))
+				.then((post) => {
+					const delta = notifications.post_delta(post)
+					for (const key in delta) {
+						if (typeof delta[key] !== 'string')
+							return done(new Error("Delta field "+key+" is not a string"))
+					}
+					if (delta.totalseats !== '3' || delta.driverneeded !== '0' ||
+						delta.driver !== '' || delta.passengers !== '')
+						return done(new Error("Wrong delta "+JSON.stringify(delta)))
+					if (Number(delta.updatedtime) !== post.updatedtime)
+						return done(new Error("Delta updatedtime does not match the post"))
+					done()
+				})
+				.catch(done)
+		})
 	})
 	describe('rejects requests with no session', function() {
 		const agent = request.agent(app)
 		const validated_get_endpoints = [
-			'/users/by_id/5', '/posts/all', '/posts/search/:START/:END',
+			'/users/by_id/5', '/posts/all', '/posts/changes?since=0',
+			'/posts/search/:START/:END',
 		]
 		const validated_post_endpoints = [
-			'/users/logout', '/users/register', '/posts/create',
+			'/users/logout', '/users/renew_session', '/users/register', '/users/by_ids', '/posts/create',
 			'/posts/add_passenger', '/posts/add_driver', '/report',
 		]
 		const check = function(endpoint, method) {
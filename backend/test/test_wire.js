@@ -0,0 +1,166 @@
+const wire = require('../wire')
+
+/*
+ * A decoder for the wire format, written from the description in wire.js, so
+ * the encoder can be checked against JSON. PostWire.java is the real one.
+ */
+function decode(buf) {
+	var pos = 0
+	const byte = () => {
+		if (pos >= buf.length) throw new Error("Cut off at " + pos)
+		return buf[pos++]
+	}
+	const varint = () => {
+		var n = 0, scale = 1, b
+		do {
+			b = byte()
+			n += (b & 0x7F) * scale
+			scale *= 0x80
+		} while (b & 0x80)
+		return n
+	}
+	const string = () => {
+		const length = varint()
+		const s = buf.slice(pos, pos + length).toString('utf8')
+		pos += length
+		return s
+	}
+	const object_id = () => {
+		const hex = buf.slice(pos, pos + 12).toString('hex')
+		pos += 12
+		return hex
+	}
+	const location = () => {
+		const k = varint()
+		return k === 0 ? string() : wire.LOCATIONS[k - 1]
+	}
+
+	if (buf.slice(0, 4).toString('hex') !== '55435702') throw new Error("Bad magic")
+	pos = 4
+	const posts = []
+	const count = varint()
+	for (var i = 0; i < count; i++) {
+		const post = {_id: object_id()}
+		const flags = byte()
+		post.driverneeded = Boolean(flags & 1)
+		post.posttime = varint()
+		post.departtime = flags & 8 ? varint() : null
+		post.updatedtime = flags & 16 ? varint() : null
+		post.start = flags & 32 ? location() : null
+		post.end = flags & 64 ? location() : null
+		post.totalseats = varint()
+		post.memo = flags & 128 ? string() : null
+		post.uploader = flags & 4 ? object_id() : null
+		post.driver = flags & 2 ? object_id() : null
+		post.passengers = []
+		const passengers = varint()
+		for (var j = 0; j < passengers; j++) {
+			post.passengers.push(object_id())
+		}
+		posts.push(post)
+	}
+	var next = null
+	if (byte() === 1) {
+		next = {after_time: varint(), after_id: object_id()}
+	}
+	if (pos !== buf.length) throw new Error("Extra bytes after the posts")
+	return {posts: posts, next: next}
+}
+
+// What the app would read for a post sent as JSON: leaving a field out is the
+// same as null, and posts with no passengers have an empty list.
+function as_json(post) {
+	const parsed = JSON.parse(JSON.stringify(post))
+	const fields = ['_id', 'driverneeded', 'posttime', 'departtime', 'updatedtime',
+		'start', 'end', 'totalseats', 'memo', 'uploader', 'driver', 'passengers']
+	const result = {}
+	fields.forEach((field) => {
+		result[field] = parsed[field] === undefined ? null : parsed[field]
+	})
+	result.totalseats = result.totalseats || 0
+	result.passengers = result.passengers || []
+	return result
+}
+
+// The same posts are decoded by PostWireTest.java, from FIXTURE below
+const POSTS = [
+	{
+		_id: '5b4a39ff74a2d138b93b9291',
+		posttime: 1531000000000,
+		departtime: 1532000000000,
+		updatedtime: 1531000005000,
+		start: 'College Nine',
+		end: 'San Jose Diridon Station',
+		totalseats: 3,
+		memo: 'Leaving from the bus stop',
+		uploader: '5b4a39ff74a2d138b93b9292',
+		driverneeded: false,
+		driver: '5b4a39ff74a2d138b93b9292',
+		passengers: ['5b4a39ff74a2d138b93b9293', '5b4a39ff74a2d138b93b9294'],
+	},
+	{
+		// Not one of the app's locations, and no driver yet
+		_id: '5b4a39ff74a2d138b93b9295',
+		posttime: 1531000000001,
+		departtime: 1532000060000,
+		updatedtime: 1531000000001,
+		start: 'Santa Cruz Metro',
+		end: "Woodstock's Pizza",
+		totalseats: 4,
+		memo: 'Café run ☕',
+		uploader: '5b4a39ff74a2d138b93b9296',
+		driverneeded: true,
+		passengers: [],
+	},
+	{
+		// Hardly anything set
+		_id: '5b4a39ff74a2d138b93b9297',
+		posttime: 1531000000002,
+		end: 'Science Hill',
+		driverneeded: true,
+		passengers: [],
+	},
+]
+const NEXT = {after_time: 1532000060000, after_id: '5b4a39ff74a2d138b93b9295'}
+
+// wire.encode_posts(POSTS, NEXT) in base64. If the format changes on purpose,
+// update this and the copy in PostWireTest.java.
+const FIXTURE = 'VUNXAgNbSjn/dKLROLk7kpH+gJzYtccsgLDDksssiMPYtccsAQcDGUxlYXZpbmcgZnJvbSB0' +
+	'aGUgYnVzIHN0b3BbSjn/dKLROLk7kpJbSjn/dKLROLk7kpICW0o5/3Si0Ti5O5KTW0o5/3Si' +
+	'0Ti5O5KUW0o5/3Si0Ti5O5KV/YGc2LXHLOCEx5LLLIGc2LXHLAAQU2FudGEgQ3J1eiBNZXRy' +
+	'bwYEDUNhZsOpIHJ1biDimJVbSjn/dKLROLk7kpYAW0o5/3Si0Ti5O5KXQYKc2LXHLAQAAAHg' +
+	'hMeSyyxbSjn/dKLROLk7kpU='
+
+describe('wire format', function() {
+	it('decodes to the same posts as JSON', function() {
+		const decoded = decode(wire.encode_posts(POSTS, NEXT))
+		if (decoded.posts.length !== POSTS.length)
+			throw new Error("Got "+decoded.posts.length+" posts back")
+		POSTS.forEach((post, i) => {
+			const expected = JSON.stringify(as_json(post))
+			const actual = JSON.stringify(decoded.posts[i])
+			if (actual !== expected)
+				throw new Error("Post "+i+" came back as "+actual+", not "+expected)
+		})
+		if (JSON.stringify(decoded.next) !== JSON.stringify(NEXT))
+			throw new Error("Cursor came back as "+JSON.stringify(decoded.next))
+	})
+	it('sends no cursor when there is no next page', function() {
+		if (decode(wire.encode_posts([])).next !== null)
+			throw new Error("Sent a cursor for the last page")
+	})
+	it('encodes the bytes the app is tested against', function() {
+		const encoded = wire.encode_posts(POSTS, NEXT).toString('base64')
+		if (encoded !== FIXTURE)
+			throw new Error("Encoding changed, update FIXTURE and PostWireTest.java: "+encoded)
+	})
+	it('refuses ids that are not ObjectIds', function() {
+		const bad = Object.assign({}, POSTS[0], {driver: 'not-an-id'})
+		try {
+			wire.encode_posts([bad])
+		} catch (err) {
+			return
+		}
+		throw new Error("Encoded a malformed driver id")
+	})
+})
@@ -0,0 +1,181 @@
+/*
+ * wire.js
+ *
+ * This module encodes lists of posts in a compact binary format that the
+ * Android app can ask for instead of JSON. JSON repeats every field name for
+ * every post and sends ObjectIds as 24 character hex strings, which adds up on
+ * slow phones and cellular links.
+ *
+ * The app asks for this format by putting WIRE_TYPE in its Accept header. See
+ * send_posts in app.js. Errors are always sent as JSON.
+ *
+ * Format
+ * All integers are unsigned LEB128 varints. Strings are a varint byte length
+ * followed by UTF-8. ObjectIds are their 12 raw bytes.
+ *	magic:    the 4 bytes "UCW" + version (2)
+ *	count:    number of posts
+ *	posts:    count posts, each:
+ *		_id          ObjectId
+ *		flags        bit 0 driverneeded, bit 1 has driver, bit 2 has uploader,
+ *		             bit 3 has departtime, bit 4 has updatedtime, bit 5 has
+ *		             start, bit 6 has end, bit 7 has memo
+ *		posttime     varint ms
+ *		departtime   varint ms, if flagged
+ *		updatedtime  varint ms, if flagged
+ *		start, end   location, if flagged: 0 followed by a string, or k for
+ *		             LOCATIONS[k-1]
+ *		totalseats   varint
+ *		memo         string, if flagged
+ *		uploader     ObjectId, if flagged
+ *		driver       ObjectId, if flagged
+ *		passengers   varint count, then that many ObjectIds
+ *	has_next: 1 if a page cursor follows, else 0
+ *	next:     after_time varint, after_id ObjectId (only if has_next)
+ *
+ * A post decodes to the same thing as its JSON. Fields that are flagged are
+ * null when the flag is not set, just as they are when JSON leaves them out.
+ * posttime is always set by the schema, and a missing totalseats is 0 in
+ * both. Version 1 had no flags for start, end and memo, and always sent them,
+ * with "" for a missing one. The app still reads version 1, since it may have
+ * such responses in its disk cache.
+ *
+ * encode_posts throws if an ObjectId is not 24 hex digits, rather than send
+ * something the app would read back as a different id. send_posts in app.js
+ * sends JSON instead when that happens.
+ *
+ * The frontend decoder is PostWire.java. Any change here must be made there too.
+ * test/test_wire.js checks the encoder against JSON and against the bytes that
+ * PostWireTest.java decodes.
+ */
+
+const WIRE_TYPE = 'application/x-ucsharecar-posts'
+const MAGIC = Buffer.from([0x55, 0x43, 0x57, 0x02]) // "UCW", version 2
+
+// The locations the app lets users pick from. These are the StartingLocations
+// in the app's strings.xml, in the same order, and must stay that way.
+const LOCATIONS = [
+	'College Nine',
+	'College Ten',
+	'McHenry Library',
+	'Science Hill',
+	'Beach Boardwalk',
+	"Woodstock's Pizza",
+	'San Jose Diridon Station',
+]
+
+const DRIVERNEEDED = 1, HAS_DRIVER = 2, HAS_UPLOADER = 4, HAS_DEPARTTIME = 8,
+	HAS_UPDATEDTIME = 16, HAS_START = 32, HAS_END = 64, HAS_MEMO = 128
+
+// Writer collects bytes in an array of small Buffers and joins them at the end.
+class Writer {
+	constructor() {
+		this.chunks = []
+	}
+
+	byte(b) {
+		this.chunks.push(Buffer.from([b]))
+	}
+
+	// Times are bigger than 32 bits, so this uses arithmetic instead of the
+	// bitwise operators.
+	varint(n) {
+		n = Math.max(0, Math.floor(Number(n) || 0))
+		const bytes = []
+		while (n >= 0x80) {
+			bytes.push((n % 0x80) | 0x80)
+			n = Math.floor(n / 0x80)
+		}
+		bytes.push(n)
+		this.chunks.push(Buffer.from(bytes))
+	}
+
+	string(s) {
+		const buf = Buffer.from(s || '', 'utf8')
+		this.varint(buf.length)
+		this.chunks.push(buf)
+	}
+
+	object_id(id) {
+		const hex = String(id)
+		if (!/^[0-9a-fA-F]{24}$/.test(hex)) {
+			throw new Error("Not an ObjectId: " + hex)
+		}
+		this.chunks.push(Buffer.from(hex, 'hex'))
+	}
+
+	location(s) {
+		const index = LOCATIONS.indexOf(s)
+		if (index >= 0) {
+			this.varint(index + 1)
+		}
+		else {
+			this.varint(0)
+			this.string(s)
+		}
+	}
+
+	buffer() {
+		return Buffer.concat(this.chunks)
+	}
+}
+
+/*
+ * Encodes an array of post documents, and optionally the cursor for the next
+ * page ({after_time, after_id}, see /posts/page), into a Buffer.
+ */
+function encode_posts(posts, next) {
+	const w = new Writer()
+	w.chunks.push(MAGIC)
+	w.varint(posts.length)
+
+	for (const post of posts) {
+		const has_departtime = typeof post.departtime === 'number'
+		const has_updatedtime = typeof post.updatedtime === 'number'
+		const has_start = typeof post.start === 'string'
+		const has_end = typeof post.end === 'string'
+		const has_memo = typeof post.memo === 'string'
+		var flags = 0
+		if (post.driverneeded) flags |= DRIVERNEEDED
+		if (post.driver) flags |= HAS_DRIVER
+		if (post.uploader) flags |= HAS_UPLOADER
+		if (has_departtime) flags |= HAS_DEPARTTIME
+		if (has_updatedtime) flags |= HAS_UPDATEDTIME
+		if (has_start) flags |= HAS_START
+		if (has_end) flags |= HAS_END
+		if (has_memo) flags |= HAS_MEMO
+
+		w.object_id(post._id)
+		w.byte(flags)
+		w.varint(post.posttime)
+		if (has_departtime) w.varint(post.departtime)
+		if (has_updatedtime) w.varint(post.updatedtime)
+		if (has_start) w.location(post.start)
+		if (has_end) w.location(post.end)
+		w.varint(post.totalseats)
+		if (has_memo) w.string(post.memo)
+		if (post.uploader) w.object_id(post.uploader)
+		if (post.driver) w.object_id(post.driver)
+		const passengers = post.passengers || []
+		w.varint(passengers.length)
+		for (const passenger of passengers) {
+			w.object_id(passenger)
+		}
+	}
+
+	if (next) {
+		w.byte(1)
+		w.varint(next.after_time)
+		w.object_id(next.after_id)
+	}
+	else {
+		w.byte(0)
+	}
+
+	return w.buffer()
+}
+
+module.exports = {
+	WIRE_TYPE: WIRE_TYPE,
+	LOCATIONS: LOCATIONS,
+	encode_posts: encode_posts,
+}
@@ -0,0 +1,209 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks PostIndex against the obvious search: look at every post, keep the ones leaving in the
+ * window, and sort them into the same, start and end groups by comparing locations. The posts are
+ * random but seeded, and share a few departure times and locations so that ties, places off the
+ * PostWire dictionary and posts without a departure time all come up.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PostIndexTest {
+
+    private static final long BASE = 1532000000000L;
+    private static final String[] PLACES = {
+            "College Nine", "Science Hill", "San Jose Diridon Station", "Santa Cruz Metro",
+            "Somewhere Else", null,
+    };
+
+    @Test
+    public void findsWhatALinearScanFinds() {
+        Random random = new Random(42);
+        ArrayList<PostInfo> posts = makePosts(random, 500);
+        PostIndex index = new PostIndex();
+        index.addAll(posts);
+
+        for (int i = 0; i < 2000; i++) {
+            String start = pick(random, PLACES);
+            String end = pick(random, PLACES);
+            long from = departureAt(random.nextInt(40)) + random.nextInt(3) - 1;
+            long to;
+            switch (random.nextInt(4)) {
+                case 0:
+                    to = Long.MAX_VALUE;
+                    break;
+                case 1:
+                    to = from;
+                    break;
+                default:
+                    to = departureAt(random.nextInt(40)) + random.nextInt(3) - 1;
+            }
+            boolean seatsOnly = random.nextBoolean();
+            assertSameResult(posts, index, start, end, from, to, seatsOnly);
+        }
+    }
+
+    @Test
+    public void windowEdgesAreInclusive() {
+        Random random = new Random(7);
+        ArrayList<PostInfo> posts = makePosts(random, 200);
+        PostIndex index = new PostIndex();
+        index.addAll(posts);
+
+        for (String start : PLACES) {
+            for (String end : PLACES) {
+                long at = departureAt(10);
+                // Exactly one departure time
+                assertSameResult(posts, index, start, end, at, at, false);
+                // Just past it on either side
+                assertSameResult(posts, index, start, end, at + 1, at + 1, false);
+                assertSameResult(posts, index, start, end, at - 1, at - 1, false);
+                // Everything, including posts with no departure time
+                assertSameResult(posts, index, start, end, Long.MIN_VALUE, Long.MAX_VALUE, false);
+                assertSameResult(posts, index, start, end, Long.MAX_VALUE, Long.MAX_VALUE, false);
+                // Up to the last time before Long.MAX_VALUE, which leaves those posts out
+                assertSameResult(posts, index, start, end, Long.MIN_VALUE, Long.MAX_VALUE - 1, false);
+                // An empty window
+                assertSameResult(posts, index, start, end, at + 1, at, false);
+            }
+        }
+    }
+
+    @Test
+    public void keepsUpWithChanges() {
+        Random random = new Random(3);
+        ArrayList<PostInfo> posts = makePosts(random, 100);
+        PostIndex index = new PostIndex();
+        index.addAll(posts);
+        assertSameResult(posts, index, "College Nine", "Science Hill", BASE, Long.MAX_VALUE, false);
+
+        // Searching builds a snapshot, so changes after it must still show up
+        PostInfo removed = posts.remove(0);
+        index.remove(removed.getId());
+        PostInfo added = makePost(random, 1000);
+        posts.add(added);
+        index.add(added);
+        assertSameResult(posts, index, "College Nine", "Science Hill", BASE, Long.MAX_VALUE, false);
+        assertSameResult(posts, index, added.getStart(), added.getEnd(), BASE, Long.MAX_VALUE, false);
+    }
+
+    @Test
+    public void forgetsPostsMissingFromARefresh() {
+        Random random = new Random(5);
+        ArrayList<PostInfo> posts = makePosts(random, 100);
+        PostIndex index = new PostIndex();
+        index.addAll(posts);
+        assertSameResult(posts, index, "College Nine", "Science Hill", BASE, Long.MAX_VALUE, false);
+
+        ArrayList<PostInfo> refreshed = new ArrayList<>(posts.subList(0, 40));
+        index.replaceAll(refreshed);
+        assertEquals(refreshed.size(), index.size());
+        for (String start : PLACES) {
+            for (String end : PLACES) {
+                assertSameResult(refreshed, index, start, end, Long.MIN_VALUE, Long.MAX_VALUE, false);
+            }
+        }
+    }
+
+    private static void assertSameResult(List<PostInfo> posts, PostIndex index, String start,
+                                         String end, long from, long to, boolean seatsOnly) {
+        PostIndex.Result expected = linearSearch(posts, start, end, from, to, seatsOnly);
+        PostIndex.Result actual = index.search(start, end, from, to, seatsOnly);
+        String query = start + " -> " + end + " in [" + from + ", " + to + "]"
+                + (seatsOnly ? " with seats" : "");
+        assertSameGroup("same, " + query, expected.same, actual.same);
+        assertSameGroup("start, " + query, expected.start, actual.start);
+        assertSameGroup("end, " + query, expected.end, actual.end);
+    }
+
+    // Posts with the same departure time may come back in any order, so compare the groups as
+    // sets and then check they are in departure order.
+    private static void assertSameGroup(String message, List<PostInfo> expected,
+                                        List<PostInfo> actual) {
+        assertEquals(message, idsOf(expected), idsOf(actual));
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 1; i < actual.size(); i++) {
+            assertTrue(message, departureOf(actual.get(i - 1)) <= departureOf(actual.get(i)));
+        }
+    }
+
+    private static PostIndex.Result linearSearch(List<PostInfo> posts, String start, String end,
+                                                 long from, long to, boolean seatsOnly) {
+        PostIndex.Result result = new PostIndex.Result();
+        for (PostInfo post : posts) {
+            long departure = departureOf(post);
+            if (departure < from || departure > to) {
+                continue;
+            }
+            if (seatsOnly && post.getTotalseats() - post.getPassengers().size() <= 0) {
+                continue;
+            }
+            boolean startMatches = start != null && start.equals(post.getStart());
+            boolean endMatches = end != null && end.equals(post.getEnd());
+            if (startMatches && endMatches) {
+                result.same.add(post);
+            }
+            else if (startMatches) {
+                result.start.add(post);
+            }
+            else if (endMatches) {
+                result.end.add(post);
+            }
+        }
+        return result;
+    }
+
+    private static HashSet<String> idsOf(List<PostInfo> posts) {
+        HashSet<String> ids = new HashSet<>();
+        for (PostInfo post : posts) {
+            ids.add(post.getId());
+        }
+        return ids;
+    }
+
+    // Same as PostIndex: posts without a departure time sort last
+    private static long departureOf(PostInfo post) {
+        return post.getDeparttime() == null ? Long.MAX_VALUE : post.getDeparttime().getTime();
+    }
+
+    // Few enough distinct times that many posts share one
+    private static long departureAt(int slot) {
+        return BASE + slot * 60000L;
+    }
+
+    private static ArrayList<PostInfo> makePosts(Random random, int count) {
+        ArrayList<PostInfo> posts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            posts.add(makePost(random, i));
+        }
+        return posts;
+    }
+
+    private static PostInfo makePost(Random random, int n) {
+        Date departtime = random.nextInt(20) == 0 ? null : new Date(departureAt(random.nextInt(40)));
+        ArrayList<String> passengers = new ArrayList<>();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            passengers.add(String.format("%024x", random.nextInt(1000)));
+        }
+        PostInfo post = new PostInfo(new Date(BASE), departtime, pick(random, PLACES),
+                pick(random, PLACES), null, false, null, null, passengers, random.nextInt(4));
+        post.setId(String.format("%024x", n));
+        return post;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
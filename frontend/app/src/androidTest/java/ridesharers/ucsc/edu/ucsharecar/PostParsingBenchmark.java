@@ -0,0 +1,139 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares parsing a feed of posts through JSONObject trees (the old GenericRequest path) with
+ * reading it field by field through JsonReader (StreamingRequest). Results go to logcat under
+ * the tag below; the test only fails if the two parsers disagree.
+ *
+ * This has to run on a device because android.util.JsonReader is only a stub on the JVM.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PostParsingBenchmark {
+
+    private static final String TAG = "UCShareCar_ParseBench";
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void parse100() throws Exception {
+        benchmark(100);
+    }
+
+    @Test
+    public void parse1000() throws Exception {
+        benchmark(1000);
+    }
+
+    @Test
+    public void parse10000() throws Exception {
+        benchmark(10000);
+    }
+
+    private void benchmark(int count) throws Exception {
+        String body = makeFeed(count);
+
+        // Warm up both paths once so we are not timing class loading
+        assertEquals(count, parseTree(body).size());
+        assertEquals(count, parseStream(body).size());
+
+        long treeNanos = 0, streamNanos = 0, treeBytes = 0, streamBytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long allocated = allocatedBytes();
+            long start = SystemClock.elapsedRealtimeNanos();
+            parseTree(body);
+            treeNanos += SystemClock.elapsedRealtimeNanos() - start;
+            treeBytes += allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = SystemClock.elapsedRealtimeNanos();
+            parseStream(body);
+            streamNanos += SystemClock.elapsedRealtimeNanos() - start;
+            streamBytes += allocatedBytes() - allocated;
+        }
+
+        Log.i(TAG, count + " posts (" + body.length() + " chars): JSONObject "
+                + (treeNanos / ROUNDS / 1000) + "us, " + (treeBytes / ROUNDS / 1024) + "KiB allocated; "
+                + "JsonReader " + (streamNanos / ROUNDS / 1000) + "us, "
+                + (streamBytes / ROUNDS / 1024) + "KiB allocated");
+    }
+
+    // Returns how many bytes have been allocated so far. ART counts this for us since Marshmallow.
+    // Before that the best we can do is collect garbage and look at how much of the heap is in
+    // use, which undercounts if a collection runs while parsing.
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+            if (stat != null) {
+                return Long.parseLong(stat);
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private ArrayList<PostInfo> parseTree(String body) throws Exception {
+        ArrayList<PostInfo> posts = new ArrayList<>();
+        JSONArray jsonArray = new JSONObject(body).getJSONArray("posts");
+        for (int i = 0; i < jsonArray.length(); i++) {
+            posts.add(new PostInfo(jsonArray.getJSONObject(i)));
+        }
+        return posts;
+    }
+
+    private ArrayList<PostInfo> parseStream(String body) throws Exception {
+        ArrayList<PostInfo> posts = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(body));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("posts")) {
+                posts = PostInfo.readList(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.close();
+        return posts;
+    }
+
+    // Builds a /posts/all response shaped like what the server sends.
+    private String makeFeed(int count) throws Exception {
+        JSONArray posts = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject post = new JSONObject();
+            post.put("_id", String.format("%024x", i));
+            post.put("posttime", 1531000000000L + i);
+            post.put("departtime", 1532000000000L + i * 60000L);
+            post.put("updatedtime", 1531000000000L + i);
+            post.put("start", "College 9");
+            post.put("end", "San Jose");
+            post.put("totalseats", 4);
+            post.put("memo", "Leaving from the bus stop, text me");
+            post.put("uploader", String.format("%024x", i + 1));
+            post.put("driverneeded", false);
+            post.put("driver", String.format("%024x", i + 1));
+            post.put("passengers", new JSONArray().put(String.format("%024x", i + 2)));
+            post.put("__v", 0);
+            posts.put(post);
+        }
+        return new JSONObject().put("result", 1).put("posts", posts).toString();
+    }
+}
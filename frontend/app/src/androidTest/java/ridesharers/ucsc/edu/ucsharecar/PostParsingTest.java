@@ -0,0 +1,117 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.JsonReader;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the JSONObject and JsonReader parsers of PostInfo agree on posts that are missing
+ * fields, and that such posts survive getJSON, which copies and parcels them.
+ *
+ * This has to run on a device because android.util.JsonReader is only a stub on the JVM.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PostParsingTest {
+
+    // memo and departtime are null, uploader, start and driver are missing
+    private static final String SPARSE = "{\"_id\":\"5b4a39ff74a2d138b93b9297\","
+            + "\"posttime\":1531000000002,\"departtime\":null,\"end\":\"Science Hill\","
+            + "\"memo\":null,\"totalseats\":2,\"driverneeded\":true,\"passengers\":[]}";
+
+    // What the server streams for db.post.create({memo: 'Streamed post', totalseats: 2}), as its
+    // tests do. PostStream reads it with the JsonReader constructor.
+    private static final String STREAMED = "{\"_id\":\"5b4a39ff74a2d138b93b9299\","
+            + "\"posttime\":1531000000003,\"updatedtime\":1531000000003,\"memo\":\"Streamed post\","
+            + "\"totalseats\":2,\"driverneeded\":true,\"passengers\":[],\"__v\":0}";
+
+    // Everything but _id is missing
+    private static final String BARE = "{\"_id\":\"5b4a39ff74a2d138b93b9298\"}";
+
+    @Test
+    public void parsersAgreeOnMissingFields() throws Exception {
+        for (String json : new String[] {SPARSE, STREAMED, BARE}) {
+            assertSamePost(parseTree(json), parseStream(json));
+        }
+    }
+
+    @Test
+    public void missingFieldsAreNull() throws Exception {
+        for (PostInfo post : new PostInfo[] {parseTree(SPARSE), parseStream(SPARSE)}) {
+            assertNull(post.getMemo());
+            assertNull(post.getDeparttime());
+            assertNull(post.getUploader());
+            assertNull(post.getStart());
+            assertNull(post.getDriver());
+            assertEquals("Science Hill", post.getEnd());
+            assertEquals(2, post.getTotalseats());
+            assertTrue(post.getPassengers().isEmpty());
+        }
+    }
+
+    @Test
+    public void copiesPostsWithMissingFields() throws Exception {
+        for (String json : new String[] {SPARSE, STREAMED, BARE}) {
+            PostInfo post = parseStream(json);
+            assertSamePost(post, new PostInfo(post.getJSON()));
+        }
+    }
+
+    @Test
+    public void parcelsPostsWithMissingFields() throws Exception {
+        PostInfo post = parseStream(SPARSE);
+        Parcel parcel = Parcel.obtain();
+        try {
+            post.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            assertSamePost(post, PostInfo.CREATOR.createFromParcel(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void streamRequiresAnId() throws Exception {
+        parseStream("{\"memo\":\"Live post\"}");
+    }
+
+    @Test(expected = org.json.JSONException.class)
+    public void treeRequiresAnId() throws Exception {
+        parseTree("{\"memo\":\"Live post\"}");
+    }
+
+    private static PostInfo parseTree(String json) throws Exception {
+        return new PostInfo(new JSONObject(json));
+    }
+
+    private static PostInfo parseStream(String json) throws Exception {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            return new PostInfo(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertSamePost(PostInfo expected, PostInfo actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getPosttime(), actual.getPosttime());
+        assertEquals(expected.getDeparttime(), actual.getDeparttime());
+        assertEquals(expected.getUpdatedtime(), actual.getUpdatedtime());
+        assertEquals(expected.getStart(), actual.getStart());
+        assertEquals(expected.getEnd(), actual.getEnd());
+        assertEquals(expected.getTotalseats(), actual.getTotalseats());
+        assertEquals(expected.getMemo(), actual.getMemo());
+        assertEquals(expected.getUploader(), actual.getUploader());
+        assertEquals(expected.isDriverneeded(), actual.isDriverneeded());
+        assertEquals(expected.getDriver(), actual.getDriver());
+        assertEquals(expected.getPassengers(), actual.getPassengers());
+    }
+}
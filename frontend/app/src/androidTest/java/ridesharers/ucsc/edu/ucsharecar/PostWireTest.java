@@ -0,0 +1,135 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+import android.util.JsonReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PostWire reads what backend/wire.js writes the same way PostInfo reads the JSON of
+ * the same posts. The bytes below were made by wire.js from the posts in backend/test/test_wire.js,
+ * which checks that wire.js still makes exactly these bytes. If the format changes on purpose,
+ * both copies have to be updated.
+ *
+ * This has to run on a device because android.util.JsonReader is only a stub on the JVM.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PostWireTest {
+
+    // wire.encode_posts(POSTS, NEXT) from test_wire.js
+    private static final String WIRE =
+            "VUNXAgNbSjn/dKLROLk7kpH+gJzYtccsgLDDksssiMPYtccsAQcDGUxlYXZpbmcgZnJvbSB0"
+            + "aGUgYnVzIHN0b3BbSjn/dKLROLk7kpJbSjn/dKLROLk7kpICW0o5/3Si0Ti5O5KTW0o5/3Si"
+            + "0Ti5O5KUW0o5/3Si0Ti5O5KV/YGc2LXHLOCEx5LLLIGc2LXHLAAQU2FudGEgQ3J1eiBNZXRy"
+            + "bwYEDUNhZsOpIHJ1biDimJVbSjn/dKLROLk7kpYAW0o5/3Si0Ti5O5KXQYKc2LXHLAQAAAHg"
+            + "hMeSyyxbSjn/dKLROLk7kpU=";
+
+    // The same posts and cursor as the server would send them in JSON
+    private static final String JSON = "{\"result\":1,\"posts\":["
+            + "{\"_id\":\"5b4a39ff74a2d138b93b9291\",\"posttime\":1531000000000,"
+            + "\"departtime\":1532000000000,\"updatedtime\":1531000005000,"
+            + "\"start\":\"College Nine\",\"end\":\"San Jose Diridon Station\",\"totalseats\":3,"
+            + "\"memo\":\"Leaving from the bus stop\",\"uploader\":\"5b4a39ff74a2d138b93b9292\","
+            + "\"driverneeded\":false,\"driver\":\"5b4a39ff74a2d138b93b9292\","
+            + "\"passengers\":[\"5b4a39ff74a2d138b93b9293\",\"5b4a39ff74a2d138b93b9294\"]},"
+            + "{\"_id\":\"5b4a39ff74a2d138b93b9295\",\"posttime\":1531000000001,"
+            + "\"departtime\":1532000060000,\"updatedtime\":1531000000001,"
+            + "\"start\":\"Santa Cruz Metro\",\"end\":\"Woodstock's Pizza\",\"totalseats\":4,"
+            + "\"memo\":\"Café run ☕\",\"uploader\":\"5b4a39ff74a2d138b93b9296\","
+            + "\"driverneeded\":true,\"passengers\":[]},"
+            + "{\"_id\":\"5b4a39ff74a2d138b93b9297\",\"posttime\":1531000000002,"
+            + "\"end\":\"Science Hill\",\"driverneeded\":true,\"passengers\":[]}],"
+            + "\"next\":{\"after_time\":1532000060000,\"after_id\":\"5b4a39ff74a2d138b93b9295\"}}";
+
+    // The third post alone, as version 1 sent it, with "" for its missing start and memo
+    private static final String WIRE_V1 = "VUNXAQFbSjn/dKLROLk7kpcBgpzYtccsAAAEAAAAAA==";
+
+    @Test
+    public void decodesLikeJson() throws Exception {
+        PostWire.Decoded decoded = PostWire.decode(Base64.decode(WIRE, Base64.DEFAULT));
+        ArrayList<PostInfo> expected = parseJson(JSON);
+
+        assertEquals(expected.size(), decoded.posts.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSamePost(expected.get(i), decoded.posts.get(i));
+        }
+    }
+
+    @Test
+    public void decodesTheCursor() throws Exception {
+        PostWire.Decoded decoded = PostWire.decode(Base64.decode(WIRE, Base64.DEFAULT));
+        assertEquals(Long.valueOf(1532000060000L), decoded.nextAfterTime);
+        assertEquals("5b4a39ff74a2d138b93b9295", decoded.nextAfterId);
+    }
+
+    @Test
+    public void decodesMissingFieldsAsNull() throws Exception {
+        PostInfo post = PostWire.decode(Base64.decode(WIRE, Base64.DEFAULT)).posts.get(2);
+        assertNull(post.getStart());
+        assertNull(post.getMemo());
+        assertNull(post.getDriver());
+        assertNull(post.getUploader());
+        assertNull(post.getDeparttime());
+        assertNull(post.getUpdatedtime());
+        assertEquals("Science Hill", post.getEnd());
+    }
+
+    @Test
+    public void stillDecodesVersion1() throws Exception {
+        byte[] body = Base64.decode(WIRE_V1, Base64.DEFAULT);
+        assertTrue(PostWire.isWire(body));
+        PostWire.Decoded decoded = PostWire.decode(body);
+        assertEquals(1, decoded.posts.size());
+        assertEquals("", decoded.posts.get(0).getStart());
+        assertEquals("Science Hill", decoded.posts.get(0).getEnd());
+        assertEquals("", decoded.posts.get(0).getMemo());
+        assertNull(decoded.nextAfterId);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void rejectsCutOffBodies() throws Exception {
+        byte[] body = Base64.decode(WIRE, Base64.DEFAULT);
+        byte[] cut = new byte[body.length - 5];
+        System.arraycopy(body, 0, cut, 0, cut.length);
+        PostWire.decode(cut);
+    }
+
+    private static void assertSamePost(PostInfo expected, PostInfo actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getPosttime(), actual.getPosttime());
+        assertEquals(expected.getDeparttime(), actual.getDeparttime());
+        assertEquals(expected.getUpdatedtime(), actual.getUpdatedtime());
+        assertEquals(expected.getStart(), actual.getStart());
+        assertEquals(expected.getEnd(), actual.getEnd());
+        assertEquals(expected.getTotalseats(), actual.getTotalseats());
+        assertEquals(expected.getMemo(), actual.getMemo());
+        assertEquals(expected.getUploader(), actual.getUploader());
+        assertEquals(expected.isDriverneeded(), actual.isDriverneeded());
+        assertEquals(expected.getDriver(), actual.getDriver());
+        assertEquals(expected.getPassengers(), actual.getPassengers());
+    }
+
+    private static ArrayList<PostInfo> parseJson(String body) throws Exception {
+        ArrayList<PostInfo> posts = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(body));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("posts")) {
+                posts = PostInfo.readList(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        reader.close();
+        return posts;
+    }
+}
@@ -1,14 +1,27 @@
 package ridesharers.ucsc.edu.ucsharecar;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
+import com.android.volley.toolbox.JsonRequest;
 import com.android.volley.toolbox.Volley;
 import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 
@@ -16,6 +29,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
@@ -25,8 +42,22 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /*
  * BackendClient owns almost all interaction with the NodeJS server. It is
@@ -46,13 +77,15 @@ import java.util.HashMap;
  *	   an error
  *	b. Processing the result. No JSON objects are sent out. BackendClient tries
  *	   hard to not pass the dynamic types buck. Everything that comes out should
- *	   be statically typed and verifiable.
+ *	   be statically typed and verifiable. Parsing happens on a background
+ *	   thread, and only the typed result is handed back on the main thread.
  * 2. Remembering the currently logged in user, saving their ID and session
  *    cookie.
- * 3. Restoring the logged in user's session across restarts.
+ * 3. Restoring the logged in user's session across restarts, and renewing it
+ *    in the background before it runs out.
  * 4. Caching user lookups. Post lookups are not cached because they change
- *    frequently, but user info should not change. BackendClient keeps a hashmap
- *    of that info internally.
+ *    frequently, but user info rarely changes. BackendClient keeps a bounded
+ *    UserCache of that info, which is also saved to disk.
  * 5. Making CERTAIN that the Firebase Cloud Messaging token is not lost.
  *    BackendClient makes public a method that the NotificationService calls
  *    when it receives a new token. We only get that new token *once* for new
@@ -60,20 +93,37 @@ import java.util.HashMap;
  *    just in case. It tries to send it to the server. If the user is not logged
  *    in, then BackendClient is smart enough to queue up that registration until
  *    the user does get a session going.
+ * 6. Not losing writes. New posts, joining rides, reports and the FCM token
+ *    all go through the Outbox, which is saved to disk and sent in order
+ *    whenever there is a session and a network. See OutboxRequest.
+ * 7. Showing changes to posts as soon as a notification about them arrives.
+ *    NotificationService puts them in the PostStore, and every post parsed
+ *    here is patched from it before it reaches the caller.
  *
  * Things that need to be persisted across restarts are stored in
- * SharedPreferences. Unimportant caching is done with a HashMap in memory.
+ * SharedPreferences. The user cache is persisted the same way (see UserCache).
  *
  * To send requests, I wrote a GenericRequest class that can build any request
- * compatible with the server we wrote. Almost all handlers should use that.
- * Some of the login handlers do not because the server handlers are
- * nonstandard, which we are not fixing to avoid regression issues. For new
- * methods, GenericRequest should dramatically simplify code.
+ * compatible with the server we wrote. All handlers should use one of its
+ * subclasses: JsonTreeRequest for most, or StreamingRequest for big responses.
+ * The login handlers are nonstandard, which we are not fixing to avoid
+ * regression issues, so they use LoginRequest, which only changes how the
+ * response is checked. For new methods, these should dramatically simplify code.
+ *
+ * Every request goes through the one Volley queue, over HTTP/1.1 connections
+ * that are kept alive and reused between requests. Volley's four network
+ * threads each keep a connection open, so requests are spread over a small
+ * pool of warm connections instead of each paying for a new TCP handshake.
+ * The server keeps idle connections open long enough for this (see index.js).
  *
  * All methods that get data accept a "happy path" callback and an error
  * callback. It should always be the case that the happy path callback is called
  * for ONLY a valid result, and anything else goes to the error. See individual
  * comments for more information on specific endpoints.
+ *
+ * Methods that fetch data for a screen also take a RequestScope, or null. When
+ * the screen goes away it cancels its scope, and none of the callbacks it
+ * passed in are called after that. See RequestScope.
  */
 public class BackendClient {
 
@@ -94,6 +144,15 @@ public class BackendClient {
     // Default max cookie age (just in case we lose that info)
     private static long DEFAULT_MAX_AGE = 30 /*hours*/ * 60 /*minutes*/;
 
+    // The session is renewed once the cookie is this old. Sessions last 24 hours from the last
+    // renewal, so anyone who opens the app at least once a day keeps theirs, however far apart
+    // the visits fall in the day. It also means we renew at most once an hour.
+    private static final long SESSION_RENEW_AFTER = TimeUnit.HOURS.toMillis(1);
+    // After a renewal fails, wait this long before trying again
+    private static final long SESSION_RENEW_RETRY = TimeUnit.MINUTES.toMillis(5);
+    private boolean renewingSession = false;
+    private long nextSessionRenewal = 0;
+
     private RequestQueue queue;
     private CookieManager cookieManager;
     private SharedPreferences sessionSettings;
@@ -103,18 +162,104 @@ public class BackendClient {
     private String userId = null;
 
     // User information has to be fetched a lot when we show posts, and it rarely changes. So we
-    // will try to maintain a cache of UserInfo objects.
-    // Users will be stored by ObjectId (that's the String key), and will have an attached UserInfo
-    private HashMap<String, UserInfo> userCache = new HashMap<>();
-
-    // The request that should be sent ASAP to register the user's push notifications.
-    // If this is non-null, it should be called by onStartSession.
-    private GenericRequest<Boolean> queuedFCMRegisterRequest = null;
+    // will try to maintain a cache of UserInfo objects, stored by ObjectId.
+    // It is bounded in size and age so bans and phone number changes are eventually picked up.
+    private UserCache userCache;
+
+    // Last good responses of GET endpoints, for requests using CachePolicy.STALE_WHILE_REVALIDATE.
+    private ResponseCache responseCache;
+
+    // Our copies of the user's posts, and changes to posts heard from notifications. Every list
+    // of posts is patched with it before it is delivered. See PostStore.
+    private PostStore postStore;
+
+    // Every post we have parsed, indexed for searchLocal
+    private final PostIndex postIndex = new PostIndex();
+    private static final int USER_CACHE_SIZE = 200;
+    private static final long USER_CACHE_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    // Most responses, and bytes of them, kept on disk. See ResponseCache.
+    private static final int RESPONSE_CACHE_SIZE = 200;
+    private static final long RESPONSE_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+    // How many posts to ask for per page of the feed.
+    private static final int POST_PAGE_SIZE = 20;
+
+    // The server rounds departure time windows out to whole minutes (see WINDOW_STEP in app.js),
+    // so "now" is rounded down the same way.
+    private static final long WINDOW_STEP = TimeUnit.MINUTES.toMillis(1);
+
+    // prefetch() may send at most PREFETCH_MAX_REQUESTS requests, or receive PREFETCH_MAX_BYTES,
+    // per PREFETCH_WINDOW_MS. Whatever does not fit is simply not prefetched.
+    private static final long PREFETCH_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int PREFETCH_MAX_REQUESTS = 8;
+    private static final long PREFETCH_MAX_BYTES = 64 * 1024;
+    private long prefetchWindowStart = 0;
+    private int prefetchRequests = 0;
+    private final AtomicLong prefetchBytes = new AtomicLong();
+    // Posts already refreshed in this window, so scrolling back and forth does not repeat them
+    private HashSet<String> prefetchedPosts = new HashSet<>();
+
+    // Lookups that have been sent but have not come back yet, keyed by user id. When a second
+    // caller asks for a user that is already on its way, it is attached to the pending lookup
+    // instead of firing a duplicate request. Volley delivers on the main thread, so this map is
+    // only ever touched from one thread.
+    private HashMap<String, ArrayList<UserLookupListeners>> pendingUserLookups = new HashMap<>();
+    // Counts how many getUserById calls were attached to a pending lookup instead of sending.
+    private int collapsedUserLookups = 0;
+
+    // User ids that getUserById has been asked for but that have not been sent yet. They are sent
+    // together as one /users/by_ids request once the batch window closes, so a screen that binds
+    // a whole list of users at once only costs one round trip.
+    private ArrayList<String> queuedUserLookups = new ArrayList<>();
+    private Handler mainHandler = new Handler(Looper.getMainLooper());
+    // For checking there is a network before sending writes
+    private ConnectivityManager connectivity;
+    // How long to gather getUserById calls before sending them. About one frame.
+    private static final long USER_BATCH_WINDOW_MS = 16;
+    private final Runnable flushUserLookups = new Runnable() {
+        @Override
+        public void run() {
+            sendQueuedUserLookups();
+        }
+    };
+
+    // Writes that have not reached the server yet, saved to disk in the order they were made.
+    private Outbox outbox;
+    // The callbacks of writes in the outbox, by Outbox.Entry id. Only writes made since the app
+    // started and not yet answered have callbacks.
+    private HashMap<Long, OutboxRequest<?>> outboxCallbacks = new HashMap<>();
+    // True while drainOutbox is sending, so only one drain runs at a time.
+    private boolean drainingOutbox = false;
+    // How many drains in a row have stopped on a failure that might go away. The outbox is tried
+    // again in the background after a Backoff.WRITE wait, up to its number of tries. After that it
+    // waits for the network to come back, a session to start, or a new write.
+    private int outboxFailures = 0;
+    private final Runnable retryOutbox = new Runnable() {
+        @Override
+        public void run() {
+            drainOutbox();
+        }
+    };
+    // How many writes to take from the outbox at a time.
+    private static final int OUTBOX_BATCH_SIZE = 10;
+    // The error the server gives when the session cookie is missing or expired.
+    private static final String SESSION_ERROR = "Not a valid session";
 
     // For saving the firebase token if we have connectivity issues.
     private String fcmToken = null;
     private boolean fcmRegistered = false;
 
+    // Id of the last live post change we got, so the next PostStream resumes after it
+    private String lastPostEventId = null;
+
+    // Timings, sizes and errors of every request sent through GenericRequest, by endpoint.
+    private final RequestMetrics metrics = new RequestMetrics();
+
+    // Responses are read from the disk cache and parsed on this thread, so big lists of posts
+    // do not hold up the UI. It is a single thread so responses are parsed in the order they
+    // arrive; a cached response is always delivered before the fresh one.
+    private final Executor parseExecutor = Executors.newSingleThreadExecutor();
+
     // Instance is just the reference to the only instance of this class that will ever exist
     private static BackendClient instance = null;
 
@@ -141,15 +286,43 @@ public class BackendClient {
 
         // Set up the SharedPreferences to persist cookies
         sessionSettings = context.getSharedPreferences(PREFS, 0);
-        // And then retrieve the saved session
+        // The user cache is read from disk lazily, the first time a user is looked up
+        userCache = new UserCache(context, USER_CACHE_SIZE, USER_CACHE_MAX_AGE);
+        responseCache = new ResponseCache(context, RESPONSE_CACHE_SIZE, RESPONSE_CACHE_MAX_BYTES);
+        postStore = PostStore.get(context);
+        // Writes left over from last time are read back right away
+        outbox = new Outbox(context);
+        // And then retrieve the saved session, renewing it if it is close to running out
         loadSession();
+        maybeRenewSession();
 
         // Retrieve FCM token. If necessary, queue up a registration
         fcmToken = sessionSettings.getString(FCM_TOKEN, null);
         fcmRegistered = sessionSettings.getBoolean(FCM_REGISTERED, false);
-        if (!fcmRegistered) {
+        if (!fcmRegistered && fcmToken != null) {
             registerFCM(fcmToken);
         }
+
+        // Send waiting writes whenever the network comes back. The broadcast is sticky, so this
+        // also fires once right away, which sends anything left over from last time.
+        connectivity = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isOnline()) {
+                    outboxFailures = 0;
+                    drainOutbox();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    // True if the phone has a network connection. Whether the server is reachable over it is
+    // another matter.
+    private boolean isOnline() {
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        return network != null && network.isConnected();
     }
 
     public static BackendClient getSingleton(Context context) {
@@ -173,11 +346,9 @@ public class BackendClient {
         // Save the session for restarts
         saveSession(userId);
 
-        // Register with FCM if necessary
-        if (queuedFCMRegisterRequest != null) {
-            queuedFCMRegisterRequest.run();
-            queuedFCMRegisterRequest = null;
-        }
+        // Send the writes that were waiting for a session, like registering with FCM
+        outboxFailures = 0;
+        drainOutbox();
     }
 
     private void saveSession(String userId) {
@@ -204,6 +375,61 @@ public class BackendClient {
         editor.apply();
     }
 
+    // When the saved session cookie runs out, in milliseconds, or 0 if there is none.
+    private long sessionExpiresAt() {
+        if (!sessionSettings.contains(CK_VALUE)) {
+            return 0;
+        }
+        long maxAge = sessionSettings.getLong(CK_MAXAGE, DEFAULT_MAX_AGE);
+        return sessionSettings.getLong(CK_SAVED_AT, 0) + maxAge * 1000;
+    }
+
+    // Renews the session in the background once the cookie is SESSION_RENEW_AFTER old, and saves
+    // the new cookie, so the session slides forward with use and users who keep using the app
+    // never go through the Google sign in again. This is checked every time a request is sent; it
+    // only goes to the server when renewal is due.
+    private void maybeRenewSession() {
+        long now = new Date().getTime();
+        if (renewingSession || userId == null || now < nextSessionRenewal || !hasSession()
+                || now - sessionSettings.getLong(CK_SAVED_AT, 0) < SESSION_RENEW_AFTER
+                || now >= sessionExpiresAt()) {
+            return;
+        }
+        Log.d(TAG, "Session runs out at "+new Date(sessionExpiresAt())+", renewing it");
+        renewingSession = true;
+
+        GenericRequest<Long> request = new JsonTreeRequest<Long>("/users/renew_session",
+                Request.Method.POST, new Response.Listener<Long>() {
+            @Override
+            public void onResponse(Long expTime) {
+                renewingSession = false;
+                // The cookie manager already holds the new cookie, so this saves it to disk
+                Log.d(TAG, "Renewed session until "+new Date(expTime));
+                saveSession(userId);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                renewingSession = false;
+                nextSessionRenewal = new Date().getTime() + SESSION_RENEW_RETRY;
+                Log.w(TAG, "Could not renew session: "+error.toString());
+            }
+        }) {
+            @Override
+            void buildParameters(JSONObject args) throws JSONException {}
+
+            @Override
+            Long parseResponse(JSONObject response) throws JSONException {
+                return response.getLong("exp_time");
+            }
+        };
+
+        // Renewing twice only hands out two cookies, so it is safe to retry like a read
+        request.backoff = Backoff.READ;
+        request.priority = Request.Priority.LOW;
+        request.run();
+    }
+
     private void loadSession() {
         Log.d(TAG, "Loading a session from sessionSettings");
 
@@ -229,6 +455,9 @@ public class BackendClient {
             HttpCookie cookie = new HttpCookie("session", cookieValue);
             cookie.setDomain(sessionSettings.getString(CK_DOMAIN, null));
             cookie.setMaxAge(timeLeft);
+            // The server sets its cookies on "/". Matching that lets a renewed cookie replace
+            // this one in the store, instead of both being sent.
+            cookie.setPath("/");
             cookieManager.getCookieStore().add(URI, cookie);
         }
     }
@@ -243,19 +472,33 @@ public class BackendClient {
 
         // Save & close the session settings
         editor.apply();
+
+        // Cached responses, saved posts and unsent writes belong to the user whose session this was
+        responseCache.clear();
+        postStore.clear();
+        postIndex.clear();
+        lastPostEventId = null;
+        outbox.clear();
+        outboxCallbacks.clear();
     }
 
     public String getUserId() {
         return userId;
     }
 
+    // Returns a new scope for an activity's requests. The name only shows up in logs.
+    public RequestScope newScope(String name) {
+        return new RequestScope(queue, name);
+    }
+
     public void registerFCM(final String token) {
         Log.d(TAG, "Received a FCM token to send");
         cacheUnregisteredFCMToken(token);
 
-        // Set up the request to send a token
-        GenericRequest<Boolean> request = new GenericRequest<Boolean>("/users/register_fcm",
-                Request.Method.POST, new Response.Listener<Boolean>() {
+        // Set up the request to send a token. The outbox holds on to it until there is a session
+        // and a network to send it with.
+        OutboxRequest<Boolean> request = new OutboxRequest<Boolean>("/users/register_fcm",
+                new Response.Listener<Boolean>() {
             @Override
             public void onResponse(Boolean response) {
                 Log.d(TAG, "Successfully sent FCM token to the server");
@@ -264,7 +507,7 @@ public class BackendClient {
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-                Log.w(TAG, "Could not send FCM token to the server");
+                Log.w(TAG, "Could not send FCM token to the server yet: "+error);
             }
         }) {
             @Override
@@ -279,16 +522,9 @@ public class BackendClient {
             }
         };
 
-        // Run the request if we have a valid session currently
-        if (hasSession()) {
-            Log.d(TAG, "Sending FCM token now");
-            request.run();
-        }
-        // If there is no session, we have to queue it.
-        else {
-            Log.d(TAG, "Queuing FCM token send when actually logged in");
-            queuedFCMRegisterRequest = request;
-        }
+        // Only the newest token matters
+        request.coalesce = true;
+        request.run();
     }
 
     private void cacheUnregisteredFCMToken(String token) {
@@ -314,139 +550,626 @@ public class BackendClient {
         editor.apply();
     }
 
+    // Sends waiting writes, oldest first, a batch at a time. It stops at the first write that can
+    // not get through, and leaves that one and everything after it for the next drain, so writes
+    // always reach the server in the order they were made. It runs when the app starts, when a
+    // session starts, when the network comes back, and after every new write.
+    //
+    // Each write is tried once per drain. Whoever is waiting on it hears right away that it was
+    // saved for later (see failWaitingWrites), and the retries happen in the background.
+    private void drainOutbox() {
+        if (drainingOutbox || outbox.isEmpty() || !hasSession()) {
+            return;
+        }
+        if (!isOnline()) {
+            Log.d(TAG, "No network, keeping "+outbox.size()+" writes until it is back");
+            failWaitingWrites();
+            return;
+        }
+        mainHandler.removeCallbacks(retryOutbox);
+        drainingOutbox = true;
+
+        ArrayList<Outbox.Entry> batch = outbox.peek(OUTBOX_BATCH_SIZE);
+        Log.d(TAG, "Sending "+batch.size()+" of "+outbox.size()+" waiting writes");
+        sendOutboxEntry(batch, 0);
+    }
+
+    // Sends batch[index], and when the server has answered it, the rest of the batch.
+    private void sendOutboxEntry(final ArrayList<Outbox.Entry> batch, final int index) {
+        if (index == batch.size()) {
+            // Done with this batch, start the next one if there is more
+            drainingOutbox = false;
+            drainOutbox();
+            return;
+        }
+
+        final Outbox.Entry entry = batch.get(index);
+        if (!outbox.contains(entry)) {
+            // A newer write replaced this one while the batch was going out
+            sendOutboxEntry(batch, index + 1);
+            return;
+        }
+
+        GenericRequest<JSONObject> request = new JsonTreeRequest<JSONObject>(entry.endpoint,
+                Request.Method.POST, new Response.Listener<JSONObject>() {
+            @Override
+            public void onResponse(JSONObject response) {
+                outboxFailures = 0;
+                outbox.remove(entry);
+                OutboxRequest<?> write = outboxCallbacks.remove(entry.id);
+                if (write != null) {
+                    write.deliver(response);
+                }
+                sendOutboxEntry(batch, index + 1);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                // Keep it for later if it might go through then
+                if (Backoff.isTransient(error) || SESSION_ERROR.equals(error.getMessage())) {
+                    Log.w(TAG, "Could not send write to "+entry.endpoint+", keeping "+outbox.size()+" for later: "+error);
+                    drainingOutbox = false;
+                    failWaitingWrites();
+                    scheduleOutboxRetry();
+                    return;
+                }
+
+                // The server turned it down, and sending it again will not change that
+                Log.w(TAG, "Server refused write to "+entry.endpoint+": "+error);
+                outbox.remove(entry);
+                OutboxRequest<?> write = outboxCallbacks.remove(entry.id);
+                if (write != null) {
+                    write.errorCallback.onErrorResponse(error);
+                }
+                sendOutboxEntry(batch, index + 1);
+            }
+        }) {
+            @Override
+            void buildParameters(JSONObject args) throws JSONException {
+                JSONObject body = new JSONObject(entry.body);
+                Iterator<String> keys = body.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    args.put(key, body.get(key));
+                }
+            }
+
+            // The write's own OutboxRequest picks the response apart
+            @Override
+            JSONObject parseResponse(JSONObject response) throws JSONException {
+                return response;
+            }
+        };
+
+        // Every try of this write, even after a restart, has the same key. The drain does the
+        // retrying, so nobody waits on hidden retries here.
+        request.idempotencyKey = entry.idempotencyKey;
+        request.backoff = Backoff.NONE;
+        request.run();
+    }
+
+    // Drains the outbox again after a wait, if it has not failed too many times in a row.
+    private void scheduleOutboxRetry() {
+        outboxFailures++;
+        if (outboxFailures >= Backoff.WRITE.maxAttempts) {
+            Log.d(TAG, "Giving up on the outbox until the network or session changes");
+            return;
+        }
+        mainHandler.removeCallbacks(retryOutbox);
+        mainHandler.postDelayed(retryOutbox, Backoff.WRITE.delayAfter(outboxFailures));
+    }
+
+    // Tells every write that is waiting with callbacks that it was saved to send later. Their
+    // callbacks are not called again.
+    private void failWaitingWrites() {
+        ArrayList<OutboxRequest<?>> writes = new ArrayList<OutboxRequest<?>>(outboxCallbacks.values());
+        outboxCallbacks.clear();
+        for (OutboxRequest<?> write : writes) {
+            write.errorCallback.onErrorResponse(new Outbox.QueuedError());
+        }
+    }
+
     // SignIn tries to sign an account with the backend server, calling the given response listener
     // on the result.
     public void SignIn(GoogleSignInAccount account, final Response.Listener<SignInResult> responseCallback,
                        Response.ErrorListener errorCallback) {
-        // First we need to make a JSON data object for the POST arguments
-        JSONObject jsonPostParameters = new JSONObject();
-        try {
-            jsonPostParameters.put("token", account.getIdToken());
-        } catch (JSONException e) {
-            Log.w(TAG, "Failed to create JSON object to validate login");
-            errorCallback.onErrorResponse(null);
-            return;
-        }
+        final String token = account.getIdToken();
 
-        // Create the whole post request
-        JsonObjectRequest request = new JsonObjectRequest(Request.Method.POST,
-                URL + "/users/login", jsonPostParameters,
-                new Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        // Save the userid if it's in there
-                        if (response.has("user_id")) {
-                            try {
-                                onStartSession(response.getString("user_id"));
-                            } catch (JSONException e) {
-                                Log.w(TAG, "Response has userid, but failed to read it: "+e);
-                            }
-                        }
-                        // We handle parsing the JSON so that the activities don't have to
-                        SignInResult result = new SignInResult(response);
-                        responseCallback.onResponse(result);
+        GenericRequest<SignInResult> request = new LoginRequest<SignInResult>("/users/login",
+                new Response.Listener<SignInResult>() {
+            @Override
+            public void onResponse(SignInResult result) {
+                // Save the userid if it's in there
+                if (result.data.has("user_id")) {
+                    try {
+                        onStartSession(result.data.getString("user_id"));
+                    } catch (JSONException e) {
+                        Log.w(TAG, "Response has userid, but failed to read it: "+e);
                     }
-                }, errorCallback);
+                }
+                responseCallback.onResponse(result);
+            }
+        }, errorCallback) {
+            @Override
+            void buildParameters(JSONObject args) throws JSONException {
+                args.put("token", token);
+            }
+
+            // We handle parsing the JSON so that the activities don't have to
+            @Override
+            SignInResult parseResponse(JSONObject response) throws JSONException {
+                return new SignInResult(response);
+            }
+        };
 
         // Send the POST request to validate the user
-        queue.add(request);
+        request.run();
     }
 
-    public void Register(String phnum, final Response.Listener<RegisterResult> responseCallback,
+    public void Register(final String phnum, final Response.Listener<RegisterResult> responseCallback,
                        Response.ErrorListener errorCallback) {
-        // First we need to make a JSON data object for the POST arguments
-        JSONObject jsonPostParameters = new JSONObject();
-        try {
-            jsonPostParameters.put("phnum", phnum);
-        } catch (JSONException e) {
-            Log.w(TAG, "Failed to create JSON object to register phone #");
-            errorCallback.onErrorResponse(null);
-            return;
-        }
+        GenericRequest<RegisterResult> request = new LoginRequest<RegisterResult>("/users/register",
+                responseCallback, errorCallback) {
+            @Override
+            void buildParameters(JSONObject args) throws JSONException {
+                args.put("phnum", phnum);
+            }
 
-        // Create the whole post request
-        JsonObjectRequest request = new JsonObjectRequest(Request.Method.POST,
-                URL + "/users/register", jsonPostParameters,
-                new Response.Listener<JSONObject>() {
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        // We handle parsing the JSON so that the activities don't have to
-                        RegisterResult result = new RegisterResult(response);
-                        responseCallback.onResponse(result);
-                    }
-                }, errorCallback);
+            // We handle parsing the JSON so that the activities don't have to
+            @Override
+            RegisterResult parseResponse(JSONObject response) throws JSONException {
+                return new RegisterResult(response);
+            }
+        };
 
         // Send the POST request to register the user
-        queue.add(request);
+        request.run();
+    }
+
+    // Gets all of the posts that have not left yet from the server. Returns a PostInfo array to
+    // the callback if it is successful, otherwise the errorCallback is called (likely with a null
+    // error, check the logs)
+    // Like the other post GETs, this uses the disk cache: the callback may be called twice, first
+    // with the cached posts and then with the fresh ones if they changed. Replace, don't append.
+    public void getAllPosts(RequestScope scope, Response.Listener<ArrayList<PostInfo>> responseCallback,
+                            Response.ErrorListener errorCallback) {
+        getAllPosts(scope, null, null, responseCallback, errorCallback);
+    }
+
+    // Gets the posts leaving between fromMillis and toMillis, inclusive. A null fromMillis means
+    // from now on, and a null toMillis means no end.
+    public void getAllPosts(RequestScope scope, Long fromMillis, Long toMillis,
+                            Response.Listener<ArrayList<PostInfo>> responseCallback,
+                            Response.ErrorListener errorCallback) {
+
+        GenericRequest<ArrayList<PostInfo>> request = new PostListRequest(
+                "/posts/all?" + windowQuery(fromMillis, toMillis), responseCallback, errorCallback) {
+            // The whole feed, so the index is rebuilt from it
+            @Override
+            void onParsed(ArrayList<PostInfo> posts) {
+                postStore.patch(posts);
+                postIndex.replaceAll(posts);
+            }
+        };
+
+        request.scope = scope;
+        request.cachePolicy = CachePolicy.STALE_WHILE_REVALIDATE;
+        request.cacheName = windowCacheName("/posts/all", fromMillis, toMillis);
+        request.run();
+    }
+
+    // The start of a departure time window: fromMillis, or now if it is null.
+    private static long windowFrom(Long fromMillis) {
+        return fromMillis != null
+                ? fromMillis : System.currentTimeMillis() / WINDOW_STEP * WINDOW_STEP;
     }
 
+    // The query string for a departure time window. See getAllPosts.
+    private static String windowQuery(Long fromMillis, Long toMillis) {
+        String query = "from=" + windowFrom(fromMillis);
+        if (toMillis != null) {
+            query += "&to=" + toMillis;
+        }
+        return query;
+    }
+
+    // "From now on" moves every minute, which would give the disk cache a new entry every minute.
+    // Those requests all share one entry instead, named after the endpoint without its window.
+    // This is safe because the cached response is only used as is if the server says its ETag
+    // still matches. Explicit windows keep their own entries.
+    private static String windowCacheName(String endpoint, Long fromMillis, Long toMillis) {
+        return fromMillis == null && toMillis == null ? endpoint : null;
+    }
 
-    // Gets all of the posts from the server. Returns a PostInfo array to the callback if it is
-    // successful, otherwise the errorCallback is called (likely with a null error, check the logs)
-    public void getAllPosts(Response.Listener<ArrayList<PostInfo>> responseCallback,
+    // Gets one page of posts in departure order, of the posts that have not left yet. Pass null
+    // for previous to get the first page, or the last PostPage you got to continue after it. Check
+    // PostPage.hasMore() before asking for another. The first page uses the disk cache, so like
+    // getAllPosts its callback may be called twice; later pages always come from the network.
+    public void getPostPage(RequestScope scope, PostPage previous, Response.Listener<PostPage> responseCallback,
                             Response.ErrorListener errorCallback) {
+        getPostPage(scope, previous, null, null, responseCallback, errorCallback);
+    }
+
+    // Like getPostPage above, for the posts leaving between fromMillis and toMillis (see
+    // getAllPosts). The window is only read for the first page. Later pages keep the first one's,
+    // so "now" does not move between pages.
+    public void getPostPage(RequestScope scope, PostPage previous, Long fromMillis, Long toMillis,
+                            Response.Listener<PostPage> responseCallback,
+                            Response.ErrorListener errorCallback) {
+
+        final long from = previous != null ? previous.fromMillis : windowFrom(fromMillis);
+        final Long to = previous != null ? previous.toMillis : toMillis;
+        final boolean firstPage = previous == null;
+        String endpoint = "/posts/page?limit=" + POST_PAGE_SIZE + "&" + windowQuery(from, to);
+        if (previous != null) {
+            endpoint += "&after_time=" + previous.nextAfterTime + "&after_id=" + previous.nextAfterId;
+        }
 
-        GenericRequest<ArrayList<PostInfo>> request = new GenericRequest<ArrayList<PostInfo>>(
-                "/posts/all", Request.Method.GET, responseCallback, errorCallback) {
+        GenericRequest<PostPage> request = new StreamingRequest<PostPage>(
+                endpoint, Request.Method.GET, responseCallback, errorCallback) {
             @Override
             void buildParameters(JSONObject args) throws JSONException {}
 
+            // The server may answer in the compact binary format instead of JSON.
+            @Override
+            PostPage parseBody(byte[] body) throws IOException, VolleyError {
+                if (!PostWire.isWire(body)) {
+                    return super.parseBody(body);
+                }
+                PostWire.Decoded decoded = PostWire.decode(body);
+                PostPage page = new PostPage();
+                page.posts = decoded.posts;
+                page.nextAfterTime = decoded.nextAfterTime;
+                page.nextAfterId = decoded.nextAfterId;
+                return page;
+            }
+
             @Override
-            ArrayList<PostInfo> parseResponse(JSONObject response) throws JSONException {
-                // Parse posts
-                ArrayList<PostInfo> posts = new ArrayList<PostInfo>();
-                JSONArray jsonArray = response.getJSONArray("posts");
-                Log.e("posts", jsonArray.toString());
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    posts.add(new PostInfo(jsonArray.getJSONObject(i)));
+            void onParsed(PostPage page) {
+                page.fromMillis = from;
+                page.toMillis = to;
+                postStore.patch(page.posts);
+                // A first page starts the feed over, so it starts the index over too
+                if (firstPage) {
+                    postIndex.replaceAll(page.posts);
+                }
+                else {
+                    postIndex.addAll(page.posts);
                 }
+            }
+
+            @Override
+            PostPage newResult() {
+                return new PostPage();
+            }
 
-                return posts;
+            @Override
+            void readField(String name, JsonReader reader, PostPage result) throws IOException {
+                if (name.equals("posts")) {
+                    result.posts = PostInfo.readList(reader);
+                }
+                else if (name.equals("next") && reader.peek() != JsonToken.NULL) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("after_time")) {
+                            result.nextAfterTime = reader.nextLong();
+                        }
+                        else if (field.equals("after_id")) {
+                            result.nextAfterId = reader.nextString();
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                else {
+                    reader.skipValue();
+                }
             }
         };
 
+        request.scope = scope;
+        request.alternateType = PostWire.WIRE_TYPE;
+        if (previous == null) {
+            request.cachePolicy = CachePolicy.STALE_WHILE_REVALIDATE;
+            request.cacheName = windowCacheName("/posts/page?limit=" + POST_PAGE_SIZE,
+                    fromMillis, toMillis);
+        }
         request.run();
     }
 
-    public void getSearch(String start, String end, final Response.Listener<ArrayList<PostInfo>> responseCallback,
+    // Searches the posts that have not left yet. See getSearch below.
+    public void getSearch(RequestScope scope, String start, String end,
+                          final Response.Listener<ArrayList<PostInfo>> responseCallback,
+                            final Response.ErrorListener errorCallback) {
+        getSearch(scope, start, end, null, null, responseCallback, errorCallback);
+    }
+
+    // Searches the posts leaving between fromMillis and toMillis (see getAllPosts) that start at
+    // start or end at end.
+    public void getSearch(RequestScope scope, String start, String end, Long fromMillis, Long toMillis,
+                          final Response.Listener<ArrayList<PostInfo>> responseCallback,
                             final Response.ErrorListener errorCallback) {
 
         String make_url = "/" + start.replace(' ', '_') + "/" + end.replace(' ', '_');
 
         Log.e("make_url", make_url);
 
-        GenericRequest<ArrayList<PostInfo>> request = new GenericRequest<ArrayList<PostInfo>>(
-                "/posts/search" + make_url, Request.Method.GET, responseCallback, errorCallback) {
+        GenericRequest<ArrayList<PostInfo>> request = new StreamingRequest<ArrayList<PostInfo>>(
+                "/posts/search" + make_url + "?" + windowQuery(fromMillis, toMillis),
+                Request.Method.GET, responseCallback, errorCallback) {
             @Override
             void buildParameters(JSONObject args) throws JSONException {}
 
             @Override
-            ArrayList<PostInfo> parseResponse(JSONObject response) throws JSONException {
+            void onParsed(ArrayList<PostInfo> posts) {
+                postStore.patch(posts);
+                postIndex.addAll(posts);
+            }
+
+            @Override
+            ArrayList<PostInfo> newResult() {
+                return new ArrayList<PostInfo>();
+            }
 
-                ArrayList<PostInfo> posts = new ArrayList<PostInfo>();
-                JSONObject post = response.getJSONObject("posts");
-                JSONArray sameArray = post.getJSONArray("same");
-                JSONArray startArray = post.getJSONArray("start");
-                JSONArray endArray = post.getJSONArray("end");
-                Log.e("same", sameArray.toString());
-                Log.e("start", startArray.toString());
-                Log.e("end", endArray.toString());
-                for (int i = 0; i < sameArray.length(); i++) {
-                    posts.add(new PostInfo(sameArray.getJSONObject(i)));
-                }
-                for (int i = 0; i < startArray.length(); i++) {
-                    posts.add(new PostInfo(startArray.getJSONObject(i)));
+            @Override
+            void readField(String name, JsonReader reader, ArrayList<PostInfo> posts) throws IOException {
+                if (!name.equals("posts")) {
+                    reader.skipValue();
+                    return;
                 }
-                for (int i = 0; i < endArray.length(); i++) {
-                    posts.add(new PostInfo(endArray.getJSONObject(i)));
+
+                // Results come in three groups. They are shown in the order same, start, end,
+                // whatever order the server sends them in.
+                ArrayList<PostInfo> same = new ArrayList<>(), start = new ArrayList<>(),
+                        end = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String group = reader.nextName();
+                    if (group.equals("same")) {
+                        same = PostInfo.readList(reader);
+                    }
+                    else if (group.equals("start")) {
+                        start = PostInfo.readList(reader);
+                    }
+                    else if (group.equals("end")) {
+                        end = PostInfo.readList(reader);
+                    }
+                    else {
+                        reader.skipValue();
+                    }
                 }
-                return posts;
+                reader.endObject();
+                Log.d(TAG, "Search found "+same.size()+" same, "+start.size()+" start, "+end.size()+" end");
+
+                posts.addAll(same);
+                posts.addAll(start);
+                posts.addAll(end);
             }
         };
 
+        request.scope = scope;
+        request.cachePolicy = CachePolicy.STALE_WHILE_REVALIDATE;
+        request.cacheName = windowCacheName("/posts/search" + make_url, fromMillis, toMillis);
+        request.run();
+    }
+
+    // Answers a search from the posts already loaded, with no network, in the same order as
+    // getSearch: same start and end first, then only the start, then only the end. It only knows
+    // posts the app has seen, so follow it with getSearch to get the server's full answer. Like
+    // getSearch, it only finds posts that have not left yet.
+    public ArrayList<PostInfo> searchLocal(String start, String end) {
+        return searchLocal(start, end, null, null);
+    }
+
+    // Like searchLocal above, for posts leaving between fromMillis and toMillis (see getAllPosts).
+    public ArrayList<PostInfo> searchLocal(String start, String end, Long fromMillis, Long toMillis) {
+        long began = System.nanoTime();
+        long to = toMillis != null ? toMillis : Long.MAX_VALUE;
+        PostIndex.Result result = postIndex.search(start, end, windowFrom(fromMillis), to, false);
+        Log.d(TAG, "Local search found "+result.same.size()+" same, "+result.start.size()+" start, "
+                +result.end.size()+" end of "+postIndex.size()+" posts in "
+                +(System.nanoTime() - began) / 1000+"us");
+        return result.all();
+    }
+
+    // Brings a list of posts (like the one from getAllPosts) up to date without downloading all
+    // of them again. Only posts saved since the newest one in the list are fetched. Those replace
+    // the posts with the same id, or are added if they are new, and the list is kept sorted by
+    // departure time. The list is changed in place; the callback gets just the posts that
+    // changed, so callers can tell if there is anything to redraw.
+    // Changes heard from notifications are applied first, without waiting on the server, so the
+    // callback may be called twice.
+    public void syncPosts(RequestScope scope, final ArrayList<PostInfo> posts,
+                          final Response.Listener<ArrayList<PostInfo>> responseCallback,
+                          Response.ErrorListener errorCallback) {
+        syncPosts(scope, posts, null, responseCallback, errorCallback);
+    }
+
+    // Like syncPosts above, for a list loaded a page at a time with getPostPage, where lastPage is
+    // the last page loaded into it. Only changes to posts in lastPage's window are fetched, and
+    // only those the pages so far cover are merged (see PostPage.covers). A post that moved past
+    // the last page is taken out of the list, since the next page will bring it.
+    public void syncPosts(RequestScope scope, final ArrayList<PostInfo> posts,
+                          final PostPage lastPage,
+                          final Response.Listener<ArrayList<PostInfo>> responseCallback,
+                          Response.ErrorListener errorCallback) {
+
+        ArrayList<PostInfo> patched = postStore.patch(posts);
+        if (!patched.isEmpty()) {
+            responseCallback.onResponse(patched);
+        }
+
+        // Our watermark is the newest change we have already seen
+        long since = 0;
+        for (PostInfo post : posts) {
+            if (post.getUpdatedtime() != null && post.getUpdatedtime().getTime() > since) {
+                since = post.getUpdatedtime().getTime();
+            }
+        }
+
+        String window = lastPage != null
+                ? windowQuery(lastPage.fromMillis, lastPage.toMillis) : windowQuery(null, null);
+        GenericRequest<ArrayList<PostInfo>> request = new PostListRequest(
+                "/posts/changes?since=" + since + "&" + window,
+                new Response.Listener<ArrayList<PostInfo>>() {
+            @Override
+            public void onResponse(ArrayList<PostInfo> changed) {
+                mergePosts(posts, changed, lastPage);
+                responseCallback.onResponse(changed);
+            }
+        }, errorCallback);
+
+        request.scope = scope;
         request.run();
     }
 
+    // Starts listening for live changes to posts (see PostStream) and keeps a list of posts up to
+    // date with them, in place. New and updated posts are merged in the same way syncPosts does,
+    // and deleted ones are removed. The callback gets the posts that were added, changed or
+    // removed, so callers can tell what to redraw. If the stream missed changes while it was
+    // disconnected, the list is brought up to date with syncPosts instead.
+    //
+    // The stream stays open until it is closed or the scope is cancelled. Close it when the screen
+    // is not visible; the next stream resumes from where the last one left off.
+    public PostStream streamPosts(RequestScope scope, ArrayList<PostInfo> posts,
+                                  Response.Listener<ArrayList<PostInfo>> changedCallback) {
+        return streamPosts(scope, posts, null, changedCallback);
+    }
+
+    // Like streamPosts above, for a list loaded a page at a time with getPostPage. Changes are
+    // merged like syncPosts does with the page pages.last() returns when they arrive, so only
+    // posts the pages so far cover are added.
+    public PostStream streamPosts(final RequestScope scope, final ArrayList<PostInfo> posts,
+                                  final LoadedPages pages,
+                                  final Response.Listener<ArrayList<PostInfo>> changedCallback) {
+        PostStream stream = new PostStream(URL + "/posts/stream", lastPostEventId, scope, mainHandler,
+                new PostStream.Listener() {
+            @Override
+            public void onEvent(PostStream.Event event) {
+                if (event.id != null) {
+                    lastPostEventId = event.id;
+                }
+                applyPostEvent(scope, posts, pages == null ? null : pages.last(), event,
+                        changedCallback);
+            }
+        });
+        stream.start();
+        return stream;
+    }
+
+    // lastPage is the last page loaded into posts, or null if it was not loaded a page at a time.
+    private void applyPostEvent(RequestScope scope, ArrayList<PostInfo> posts, PostPage lastPage,
+                                PostStream.Event event,
+                                Response.Listener<ArrayList<PostInfo>> changedCallback) {
+        ArrayList<PostInfo> changed = new ArrayList<>();
+        switch (event.type) {
+            case "create":
+            case "update":
+                if (event.post == null) {
+                    return;
+                }
+                // Fresh from the server, so this is also a chance to drop Deltas it has caught
+                // up with, and to update our copy if it is one of the user's posts
+                postStore.patch(Collections.singletonList(event.post));
+                if (userId != null && event.post.containsUser(userId)) {
+                    postStore.remember(event.post);
+                }
+                postIndex.add(event.post);
+                changed.add(event.post);
+                mergePosts(posts, changed, lastPage);
+                break;
+            case "delete":
+                postIndex.remove(event.postId);
+                for (int i = 0; i < posts.size(); i++) {
+                    if (posts.get(i).getId().equals(event.postId)) {
+                        changed.add(posts.remove(i));
+                        break;
+                    }
+                }
+                break;
+            case "reset":
+                Log.d(TAG, "Post stream missed changes, syncing instead");
+                syncPosts(scope, posts, lastPage, changedCallback, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        Log.w(TAG, "Could not sync posts after a stream reset: "+error.toString());
+                    }
+                });
+                return;
+            default:
+                // "ready", or something newer than this app
+                return;
+        }
+
+        if (!changed.isEmpty()) {
+            changedCallback.onResponse(changed);
+        }
+    }
+
+    // Applies changed posts to a list by _id, then re-sorts it by departure time like the server.
+    // If lastPage is not null, the list was loaded a page at a time, and changed posts the pages
+    // so far do not cover are taken out of it instead.
+    private void mergePosts(ArrayList<PostInfo> posts, ArrayList<PostInfo> changed,
+                            PostPage lastPage) {
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, PostInfo> merged = new HashMap<>();
+        for (PostInfo post : changed) {
+            merged.put(post.getId(), post);
+        }
+        for (int i = posts.size() - 1; i >= 0; i--) {
+            PostInfo post = merged.remove(posts.get(i).getId());
+            if (post == null) {
+                continue;
+            }
+            if (lastPage == null || lastPage.covers(post)) {
+                posts.set(i, post);
+            }
+            else {
+                posts.remove(i);
+            }
+        }
+        // What is left is new to the list
+        for (PostInfo post : changed) {
+            PostInfo latest = merged.remove(post.getId());
+            if (latest != null && (lastPage == null || lastPage.covers(latest))) {
+                posts.add(latest);
+            }
+        }
+
+        sortByDeparture(posts);
+    }
+
+    // Posts without a departure time go last, as in PostIndex.
+    private static void sortByDeparture(ArrayList<PostInfo> posts) {
+        Collections.sort(posts, new Comparator<PostInfo>() {
+            @Override
+            public int compare(PostInfo a, PostInfo b) {
+                long x = departureOf(a), y = departureOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+    }
+
+    private static long departureOf(PostInfo post) {
+        return post.getDeparttime() == null ? Long.MAX_VALUE : post.getDeparttime().getTime();
+    }
+
+    // True if someone other than the user is in the post. This is how db.post.my_page tells
+    // matches from no_matches.
+    private boolean hasOtherUser(PostInfo post) {
+        if (post.getDriver() != null && !post.getDriver().equals(userId)) {
+            return true;
+        }
+        return post.getPassengers().size() > 1
+                || (!post.getPassengers().isEmpty() && !post.getPassengers().contains(userId));
+    }
+
     // Saves a PostInfo object to the database. responseCallback will always be called with the
     // ID of the new post.
     public void createPost(final PostInfo post, Response.Listener<String> responseCallback,
@@ -454,8 +1177,8 @@ public class BackendClient {
 
         // Build request object. We have to pass the post as "post" in the request JSON. Then we get
         // post_id back in the response.
-        GenericRequest<String> request = new GenericRequest<String>("/posts/create",
-                Request.Method.POST, responseCallback, errorCallback) {
+        OutboxRequest<String> request = new OutboxRequest<String>("/posts/create",
+                responseCallback, errorCallback) {
             @Override
             void buildParameters(JSONObject args) throws JSONException {
                 args.put("post", post.getJSON());
@@ -480,7 +1203,7 @@ public class BackendClient {
                            Response.ErrorListener errorCallback) {
 
         // Build the request
-        GenericRequest<String> request = new GenericRequest<String>("/posts/update",
+        GenericRequest<String> request = new JsonTreeRequest<String>("/posts/update",
                 Request.Method.POST, responseCallback, errorCallback) {
             void buildParameters(JSONObject object) throws JSONException {
                 object.put("post", post.getJSON());
@@ -494,11 +1217,21 @@ public class BackendClient {
         request.run();
     }
 
-    public void getPostById(String id, final Response.Listener<PostInfo> responseCallback,
+    public void getPostById(RequestScope scope, String id, final Response.Listener<PostInfo> responseCallback,
                            final Response.ErrorListener errorCallback) {
 
+        GenericRequest<PostInfo> request = newPostByIdRequest(id, responseCallback, errorCallback);
+        request.scope = scope;
+        request.cachePolicy = CachePolicy.STALE_WHILE_REVALIDATE;
+
+        // Send the request
+        request.run();
+    }
+
+    private GenericRequest<PostInfo> newPostByIdRequest(String id, Response.Listener<PostInfo> responseCallback,
+                                                        Response.ErrorListener errorCallback) {
         // Set up gen. request object. Post id goes in URL, so no arg building.
-        GenericRequest<PostInfo> request = new GenericRequest<PostInfo>("/posts/by_id/"+id,
+        return new JsonTreeRequest<PostInfo>("/posts/by_id/"+id,
                 Request.Method.GET, responseCallback, errorCallback) {
             @Override
             void buildParameters(JSONObject args) throws JSONException {}
@@ -507,51 +1240,300 @@ public class BackendClient {
             PostInfo parseResponse(JSONObject response) throws JSONException {
                 return new PostInfo(response.getJSONObject("post"));
             }
-        };
 
-        // Send the request
-        request.run();
+            @Override
+            void onParsed(PostInfo post) {
+                if (userId != null && post.containsUser(userId)) {
+                    postStore.remember(post);
+                }
+                postStore.patch(Collections.singletonList(post));
+                postIndex.add(post);
+            }
+        };
     }
 
     // This is very similar to getPostById. Accepts a string argument (the ObjectId of the user you
     // want, the same as what you get from PostInfo.getPassengers() or this.getUserId()). Returns a
     // UserInfo object via response listener, otherwise the errorCallback is called.
-    public void getUserById(String id, final Response.Listener<UserInfo> responseCallback,
+    // If a lookup for the same id is already in flight, this call is attached to it and all
+    // callers get the one parsed UserInfo. Lookups for different ids made within
+    // USER_BATCH_WINDOW_MS of each other are sent together through getUsersByIds. The shared
+    // request is not tied to any one scope, but callers whose scope was cancelled are skipped.
+    public void getUserById(RequestScope scope, final String id, final Response.Listener<UserInfo> responseCallback,
                             final Response.ErrorListener errorCallback) {
 
         // If we already have this user cached, just return that.
-        if (userCache.containsKey(id)) {
-            responseCallback.onResponse(userCache.get(id));
+        UserInfo cached = userCache.get(id);
+        if (cached != null) {
+            responseCallback.onResponse(cached);
             return;
         }
 
-        // Build the request. User id is URL argument.
-        GenericRequest<UserInfo> request = new GenericRequest<UserInfo>("/users/by_id/"+id,
-                Request.Method.GET, responseCallback, errorCallback) {
-            @Override
-            void buildParameters(JSONObject args) throws JSONException {}
+        // If someone already asked for this user, wait on their request instead of sending ours.
+        ArrayList<UserLookupListeners> waiting = pendingUserLookups.get(id);
+        if (waiting != null) {
+            collapsedUserLookups++;
+            Log.d(TAG, "Attaching to pending lookup for user "+id+" ("+collapsedUserLookups+" collapsed so far)");
+            waiting.add(new UserLookupListeners(scope, responseCallback, errorCallback));
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(new UserLookupListeners(scope, responseCallback, errorCallback));
+        pendingUserLookups.put(id, waiting);
+
+        // Queue the id for the next batch. The first id in a batch opens the window.
+        queuedUserLookups.add(id);
+        if (queuedUserLookups.size() == 1) {
+            mainHandler.postDelayed(flushUserLookups, USER_BATCH_WINDOW_MS);
+        }
+    }
+
+    // Sends every queued user id as one request and fans the results out to the callers waiting
+    // on each id. Ids the server does not know about go to their error callbacks.
+    private void sendQueuedUserLookups() {
+        final ArrayList<String> ids = queuedUserLookups;
+        queuedUserLookups = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Sending a batch of "+ids.size()+" user lookups");
+        getUsersByIds(null, ids, new Response.Listener<ArrayList<UserInfo>>() {
+            @Override
+            public void onResponse(ArrayList<UserInfo> response) {
+                finishUserLookups(ids, response);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                failUserLookups(ids, error);
+            }
+        });
+    }
+
+    // Hands each of the users found to everyone waiting on their id. Ids the server did not send
+    // back go to the error callbacks.
+    private void finishUserLookups(ArrayList<String> ids, ArrayList<UserInfo> response) {
+        HashMap<String, UserInfo> found = new HashMap<>();
+        for (UserInfo user : response) {
+            found.put(user.getId(), user);
+        }
+        for (String id : ids) {
+            UserInfo user = found.get(id);
+            for (UserLookupListeners listeners : finishUserLookup(id)) {
+                if (listeners.isCancelled()) {
+                    continue;
+                }
+                if (user != null) {
+                    listeners.responseCallback.onResponse(user);
+                }
+                else {
+                    listeners.errorCallback.onErrorResponse(
+                            new VolleyError("Could not find user "+id));
+                }
+            }
+        }
+    }
+
+    // Hands a failed lookup to everyone waiting on any of the ids.
+    private void failUserLookups(ArrayList<String> ids, VolleyError error) {
+        for (String id : ids) {
+            for (UserLookupListeners listeners : finishUserLookup(id)) {
+                if (!listeners.isCancelled()) {
+                    listeners.errorCallback.onErrorResponse(error);
+                }
+            }
+        }
+    }
+
+    // Looks up many users with one request. The result has one UserInfo for every id the server
+    // found, in no particular order, so match them up with UserInfo.getId(). Every user returned
+    // is cached. Most callers should use getUserById, which batches for you.
+    public void getUsersByIds(RequestScope scope, final ArrayList<String> ids,
+                              final Response.Listener<ArrayList<UserInfo>> responseCallback,
+                              final Response.ErrorListener errorCallback) {
+
+        GenericRequest<ArrayList<UserInfo>> request = newUsersByIdsRequest(ids, responseCallback,
+                errorCallback);
+        request.scope = scope;
+        request.run();
+    }
+
+    private GenericRequest<ArrayList<UserInfo>> newUsersByIdsRequest(final ArrayList<String> ids,
+            Response.Listener<ArrayList<UserInfo>> responseCallback,
+            Response.ErrorListener errorCallback) {
+        return new StreamingRequest<ArrayList<UserInfo>>(
+                "/users/by_ids", Request.Method.POST, responseCallback, errorCallback) {
+            @Override
+            void buildParameters(JSONObject args) throws JSONException {
+                args.put("user_ids", new JSONArray(ids));
+            }
+
             @Override
-            UserInfo parseResponse(JSONObject response) throws JSONException {
-                // User should be the field in the response object
-                UserInfo result = new UserInfo(response.getJSONObject("user"));
+            ArrayList<UserInfo> newResult() {
+                return new ArrayList<>();
+            }
 
-                // Cache the user for later
-                userCache.put(result.getId(), result);
+            @Override
+            void readField(String name, JsonReader reader, ArrayList<UserInfo> users) throws IOException {
+                if (!name.equals("users")) {
+                    reader.skipValue();
+                    return;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    users.add(new UserInfo(reader));
+                }
+                reader.endArray();
 
-                return result;
+                // Cache the users for later, all in one save
+                userCache.putAll(users);
             }
         };
+    }
+
+    // Warms the caches for posts that are on screen, so opening one is instant. Call it with the
+    // rows that are visible once scrolling stops. Only posts the user is in are prefetched, since
+    // only those show the other riders' contact info, and only those get notifications that open
+    // them by id. For those posts this:
+    //	1. looks up the driver and passengers that are not in the user cache, in one request, that
+    //	   getUserById calls for them wait on while it is in flight
+    //	2. refreshes the cached /posts/by_id copy of each post
+    // Everything is sent at low priority and within the prefetch budget. Nothing is called back.
+    public void prefetch(RequestScope scope, List<PostInfo> visible) {
+        if (userId == null) {
+            return;
+        }
+
+        // Start a new budget window if the last one is over
+        long now = System.currentTimeMillis();
+        if (now - prefetchWindowStart > PREFETCH_WINDOW_MS) {
+            prefetchWindowStart = now;
+            prefetchRequests = 0;
+            prefetchBytes.set(0);
+            prefetchedPosts.clear();
+        }
+
+        ArrayList<PostInfo> mine = new ArrayList<>();
+        LinkedHashSet<String> users = new LinkedHashSet<>();
+        for (PostInfo post : visible) {
+            if (!post.containsUser(userId)) {
+                continue;
+            }
+            mine.add(post);
+            if (!post.isDriverneeded() && post.getDriver() != null) {
+                users.add(post.getDriver());
+            }
+            users.addAll(post.getPassengers());
+        }
+        // Leave out users we have, or that someone is already looking up
+        Iterator<String> it = users.iterator();
+        while (it.hasNext()) {
+            String id = it.next();
+            if (userCache.contains(id) || pendingUserLookups.containsKey(id)) {
+                it.remove();
+            }
+        }
+
+        Response.ErrorListener logError = new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.d(TAG, "Prefetch failed: "+error);
+            }
+        };
+
+        if (!users.isEmpty() && hasPrefetchBudget()) {
+            // Register the ids as pending lookups with nobody waiting yet, so a getUserById for
+            // one of them before this comes back waits on it instead of sending its own.
+            final ArrayList<String> ids = new ArrayList<>(users);
+            for (String id : ids) {
+                pendingUserLookups.put(id, new ArrayList<UserLookupListeners>());
+            }
+            GenericRequest<ArrayList<UserInfo>> request = newUsersByIdsRequest(ids,
+                    new Response.Listener<ArrayList<UserInfo>>() {
+                @Override
+                public void onResponse(ArrayList<UserInfo> response) {
+                    finishUserLookups(ids, response);
+                }
+            }, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    Log.d(TAG, "Prefetch failed: "+error);
+                    failUserLookups(ids, error);
+                }
+            });
+            // Not tied to the screen, since others may now be waiting on it, like the batches
+            // from getUserById
+            sendPrefetch(null, request);
+        }
+
+        for (PostInfo post : mine) {
+            if (!hasPrefetchBudget()) {
+                Log.d(TAG, "Prefetch budget used up, "+prefetchRequests+" requests, "+prefetchBytes.get()+" bytes");
+                break;
+            }
+            if (!prefetchedPosts.add(post.getId())) {
+                continue;
+            }
+            GenericRequest<PostInfo> request = newPostByIdRequest(post.getId(),
+                    new Response.Listener<PostInfo>() {
+                @Override
+                public void onResponse(PostInfo response) {
+                    // The fresh copy is in the response cache now
+                }
+            }, logError);
+            request.cachePolicy = CachePolicy.REFRESH;
+            sendPrefetch(scope, request);
+        }
+    }
+
+    private boolean hasPrefetchBudget() {
+        return prefetchRequests < PREFETCH_MAX_REQUESTS && prefetchBytes.get() < PREFETCH_MAX_BYTES;
+    }
 
-        // Run the request
+    private void sendPrefetch(RequestScope scope, GenericRequest<?> request) {
+        prefetchRequests++;
+        request.scope = scope;
+        request.priority = Request.Priority.LOW;
+        request.byteCounter = prefetchBytes;
+        // A prefetch that fails is not worth trying again
+        request.backoff = Backoff.NONE;
         request.run();
     }
 
+    // Removes the pending lookup for a user and returns everyone who was waiting on it.
+    private ArrayList<UserLookupListeners> finishUserLookup(String id) {
+        ArrayList<UserLookupListeners> waiting = pendingUserLookups.remove(id);
+        if (waiting == null) {
+            return new ArrayList<>();
+        }
+        return waiting;
+    }
+
+    // Returns the user cache so its hit, miss and eviction counts can be inspected.
+    UserCache getUserCache() {
+        return userCache;
+    }
+
+    // Returns how many getUserById calls were served by a request that was already in flight.
+    public int getCollapsedUserLookups() {
+        return collapsedUserLookups;
+    }
+
+    // Logs and returns a table of p50/p99 queue wait, network time, parse time and response size,
+    // and error counts, for every endpoint used since the app started.
+    public String dumpMetrics() {
+        String report = metrics.report();
+        Log.i(TAG, "Request metrics:\n" + report);
+        return report;
+    }
+
     public void createReport(final ReportInfo report, final Response.Listener<String> responseCallback,
                              final Response.ErrorListener errorCallback) {
 
         // Build the request
-        GenericRequest<String> request = new GenericRequest<String>("/report",
-                Request.Method.POST, responseCallback, errorCallback) {
+        OutboxRequest<String> request = new OutboxRequest<String>("/report",
+                responseCallback, errorCallback) {
             void buildParameters(JSONObject args) throws JSONException {
                 args.put("report", report.getJSON());
                 Log.d("test", report.getJSON().toString());
@@ -569,8 +1551,8 @@ public class BackendClient {
                           final Response.ErrorListener errorCallback) {
 
         // Build the request
-        GenericRequest<String> request = new GenericRequest<String>("/posts/add_driver",
-                Request.Method.POST, responseCallback, errorCallback) {
+        OutboxRequest<String> request = new OutboxRequest<String>("/posts/add_driver",
+                responseCallback, errorCallback) {
             void buildParameters(JSONObject args) throws JSONException {
                 args.put("post_id", post_id);
                 args.put("avail", avail_seats);
@@ -588,8 +1570,8 @@ public class BackendClient {
                           final Response.ErrorListener errorCallback) {
 
         // Build the request
-        GenericRequest<String> request = new GenericRequest<String>("/posts/add_passenger",
-                Request.Method.POST, responseCallback, errorCallback) {
+        OutboxRequest<String> request = new OutboxRequest<String>("/posts/add_passenger",
+                responseCallback, errorCallback) {
             void buildParameters(JSONObject args) throws JSONException {
                 args.put("post_id", post_id);
             }
@@ -602,33 +1584,148 @@ public class BackendClient {
         request.run();
     }
 
-    public void getMyPage(Response.Listener<JSONObject> responseCallback,
+    // Gets the posts for My Page. The result splits them into posts where the user is still alone
+    // and posts they share with someone else. Uses the disk cache, so the callback may be called
+    // twice.
+    public void getMyPage(RequestScope scope, Response.Listener<MyPagePosts> responseCallback,
                             Response.ErrorListener errorCallback) {
 
-        GenericRequest<JSONObject> request = new GenericRequest<JSONObject>(
+        GenericRequest<MyPagePosts> request = new StreamingRequest<MyPagePosts>(
                 "/posts/my_page", Request.Method.GET, responseCallback, errorCallback) {
             @Override
             void buildParameters(JSONObject args) throws JSONException {}
 
+            // These are exactly the posts notifications are about, so keep copies of them
             @Override
-            JSONObject parseResponse(JSONObject response) throws JSONException {
-                JSONObject post = response.getJSONObject("posts");
-                return post;
+            void onParsed(MyPagePosts result) {
+                for (PostInfo post : result.noMatches) {
+                    postStore.remember(post);
+                }
+                for (PostInfo post : result.matches) {
+                    postStore.remember(post);
+                }
+                postStore.patch(result.matches);
+
+                // A Delta may mean someone joined a post the user was alone in, so it moves over
+                // to matches, the same way the server would group it now
+                ArrayList<PostInfo> joined = postStore.patch(result.noMatches);
+                for (PostInfo post : joined) {
+                    if (hasOtherUser(post)) {
+                        result.noMatches.remove(post);
+                        result.matches.add(post);
+                    }
+                }
+                if (!joined.isEmpty()) {
+                    sortByDeparture(result.matches);
+                }
+                postIndex.addAll(result.noMatches);
+                postIndex.addAll(result.matches);
+            }
+
+            @Override
+            MyPagePosts newResult() {
+                return new MyPagePosts();
+            }
+
+            @Override
+            void readField(String name, JsonReader reader, MyPagePosts result) throws IOException {
+                if (!name.equals("posts")) {
+                    reader.skipValue();
+                    return;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String group = reader.nextName();
+                    if (group.equals("no_matches")) {
+                        result.noMatches = PostInfo.readList(reader);
+                    }
+                    else if (group.equals("matches")) {
+                        result.matches = PostInfo.readList(reader);
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
             }
         };
 
+        request.scope = scope;
+        request.cachePolicy = CachePolicy.STALE_WHILE_REVALIDATE;
         request.run();
     }
 
-    // GenericRequest attempts to make generic the code to write new requests.
+    // How a GET request may use the on-disk ResponseCache.
+    enum CachePolicy {
+        // Always wait on the network. This is the default.
+        NETWORK_ONLY,
+        // Deliver the last good response from disk right away, then revalidate with the server.
+        // The listener is called a second time only if the server's response is different.
+        STALE_WHILE_REVALIDATE,
+        // Revalidate the copy on disk with the server, but do not deliver it. The listener is only
+        // called if the server has something new. For warming the cache ahead of time.
+        REFRESH,
+    }
+
+    // HTTP status for a conditional request whose cached copy is still good.
+    private static final int NOT_MODIFIED = 304;
+
+    // Request bodies at least this big are gzipped before sending. Smaller ones would only grow.
+    // Responses need nothing from us: HttpURLConnection asks for gzip and inflates it itself.
+    private static final int GZIP_THRESHOLD = 1024;
+
+    // Gzips a request body if it is big enough to be worth it. Returns null if it is not, or if
+    // compression fails, in which case the body should be sent as is.
+    private static byte[] gzipIfLarge(String body) {
+        if (body == null) {
+            return null;
+        }
+        try {
+            byte[] raw = body.getBytes("UTF-8");
+            if (raw.length < GZIP_THRESHOLD) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(raw);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not gzip request body, sending it as is: "+e.toString());
+            return null;
+        }
+    }
+
+    // GenericRequest attempts to make generic the code to write new requests. Subclasses say how
+    // to turn a response body into a result with parseBody: JsonTreeRequest for most endpoints,
+    // StreamingRequest for big ones, and LoginRequest for the login handlers.
     abstract class GenericRequest<T> {
         abstract void buildParameters(JSONObject args) throws JSONException;
-        abstract T parseResponse(JSONObject response) throws JSONException;
 
         String endpoint;
         int method;
         Response.Listener<T> responseCallback;
         Response.ErrorListener errorCallback;
+        // Set this before run() to opt a GET endpoint into the disk cache.
+        CachePolicy cachePolicy = CachePolicy.NETWORK_ONLY;
+        // What to file the response under in the disk cache, if not the endpoint. See
+        // windowCacheName.
+        String cacheName = null;
+        // Extra media type to offer the server besides JSON, or null. parseBody has to handle it.
+        String alternateType = null;
+        // The screen this request is for, or null. Set this before run().
+        RequestScope scope = null;
+        // How to retry failures. GETs retry by default. Other requests must not be retried
+        // unless the server can tell a retry apart, which is what idempotencyKey is for.
+        Backoff backoff;
+        // Sent as the Idempotency-Key header, the same on every try. Null to send none.
+        String idempotencyKey = null;
+        // Volley sends higher priority requests first. Prefetches use LOW so they never hold up
+        // what is on screen.
+        Request.Priority priority = Request.Priority.NORMAL;
+        // If set, the size of every response body received is added to it, from Volley's network
+        // thread. Used for the prefetch budget.
+        AtomicLong byteCounter = null;
 
         GenericRequest(final String endpoint, int method, final Response.Listener<T> responseCallback,
                                  final Response.ErrorListener errorCallback) {
@@ -636,9 +1733,23 @@ public class BackendClient {
             this.method = method;
             this.responseCallback = responseCallback;
             this.errorCallback = errorCallback;
+            this.backoff = method == Request.Method.GET ? Backoff.READ : Backoff.NONE;
+        }
+
+        // Called on the parse thread with every result, cached or fresh, before it is delivered.
+        // Requests for posts override it to patch them from the PostStore.
+        void onParsed(T result) {}
+
+        // True if the screen this request was for has gone away.
+        boolean isCancelled() {
+            return scope != null && scope.isCancelled();
         }
 
         void run() {
+            if (isCancelled()) {
+                return;
+            }
+            maybeRenewSession();
             JSONObject jsonPostParameters = null;
 
             // If the method is POST, then we construct the arguments. Otherwise we can skip it.
@@ -656,34 +1767,466 @@ public class BackendClient {
                 }
             }
 
-            // Set up request and callbacks
-            JsonObjectRequest request = new JsonObjectRequest(method,
-                    URL + endpoint, jsonPostParameters, new Response.Listener<JSONObject>() {
+            final String requestBody = jsonPostParameters == null ? null : jsonPostParameters.toString();
+
+            // If we are allowed to, hand out the cached response before going to the network.
+            // Responses depend on who is logged in, so the user id is part of the key.
+            final boolean useCache = method == Request.Method.GET
+                    && cachePolicy != CachePolicy.NETWORK_ONLY;
+            if (!useCache) {
+                send(requestBody, null, null, 1);
+                return;
+            }
+
+            // Reading the disk is slow too, so that also happens on the parse thread.
+            final String cacheKey = userId + (cacheName != null ? cacheName : endpoint);
+            parseExecutor.execute(new Runnable() {
                 @Override
-                public void onResponse(JSONObject response) {
-                    try {
-                        // Check for valid response
-                        if (hasError(response)) {
-                            String error = response.getString("error");
-                            Log.w(TAG, "Got a bad result for " + endpoint + ": " + error);
-                            errorCallback.onErrorResponse(new VolleyError(error));
-                            return;
+                public void run() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    ResponseCache.Entry cachedEntry = responseCache.get(cacheKey);
+                    if (cachedEntry != null && cachePolicy == CachePolicy.STALE_WHILE_REVALIDATE) {
+                        Log.d(TAG, "Delivering cached response for "+endpoint+" while revalidating");
+                        handleResponse(cachedEntry.body, null);
+                    }
+                    send(requestBody, cacheKey, cachedEntry, 1);
+                }
+            });
+        }
+
+        // Sends the request over the network. If cacheKey is not null, a good response is saved
+        // under it. cachedEntry is what the caller has already been given, if anything. attempt
+        // counts tries from 1, for the backoff.
+        private void send(final String requestBody, final String cacheKey,
+                          final ResponseCache.Entry cachedEntry, final int attempt) {
+            final byte[] cached = cachedEntry != null ? cachedEntry.body : null;
+
+            // The validator the server sends back with a fresh response. It is written from
+            // Volley's network thread and read in the listener, which runs after it.
+            final String[] validator = new String[1];
+
+            // Big request bodies, like whole posts, go out compressed
+            final byte[] gzippedBody = gzipIfLarge(requestBody);
+
+            // Times this try from here, where it is about to be queued
+            final RequestMetrics.Call call = metrics.begin(endpoint);
+
+            // Set up request and callbacks. The body is handed to us as raw bytes, and we parse
+            // it on the parse thread in handleResponse.
+            JsonRequest<byte[]> request = new JsonRequest<byte[]>(method, URL + endpoint,
+                    requestBody, new Response.Listener<byte[]>() {
+                @Override
+                public void onResponse(final byte[] body) {
+                    if (Arrays.equals(body, cached)) {
+                        Log.d(TAG, "Cached response for "+endpoint+" is still good");
+                        call.finish();
+                        return;
+                    }
+                    parseExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (handleResponse(body, call) && cacheKey != null) {
+                                responseCache.put(cacheKey, body, validator[0]);
+                            }
                         }
+                    });
+                }
+            }, new Response.ErrorListener() {
+                @Override
+                public void onErrorResponse(VolleyError error) {
+                    call.fail(error);
+                    // The scope may have been cancelled before the request reached the queue
+                    if (isCancelled()) {
+                        return;
+                    }
+                    if (backoff.shouldRetry(attempt, error)) {
+                        long delay = backoff.delayAfter(attempt);
+                        Log.w(TAG, "Try "+attempt+" of "+endpoint+" failed, retrying in "+delay+"ms: "+error);
+                        mainHandler.postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!isCancelled()) {
+                                    send(requestBody, cacheKey, cachedEntry, attempt + 1);
+                                }
+                            }
+                        }, delay);
+                        return;
+                    }
+                    // If the caller already has the cached copy, there is nothing new to tell it.
+                    if (cached != null) {
+                        Log.w(TAG, "Could not revalidate " + endpoint + ", keeping cached copy: " + error);
+                        return;
+                    }
+                    errorCallback.onErrorResponse(error);
+                }
+            }) {
+                // Ask the server to skip the body if our cached copy is still current.
+                @Override
+                public Map<String, String> getHeaders() throws AuthFailureError {
+                    Map<String, String> headers = new HashMap<>(super.getHeaders());
+                    if (cachedEntry != null && cachedEntry.validator != null) {
+                        headers.put("If-None-Match", cachedEntry.validator);
+                    }
+                    if (alternateType != null) {
+                        headers.put("Accept", alternateType + ", application/json;q=0.9");
+                    }
+                    if (gzippedBody != null) {
+                        headers.put("Content-Encoding", "gzip");
+                    }
+                    if (idempotencyKey != null) {
+                        headers.put("Idempotency-Key", idempotencyKey);
+                    }
+                    return headers;
+                }
 
-                        // Send success to callee
-                        Log.d(TAG, "Generic req to "+endpoint+" successful, handing off to parse");
-                        responseCallback.onResponse(parseResponse(response));
-                    } catch (JSONException e) {
-                        // If parsing fails, we fail
-                        Log.w(TAG, "Request to " + endpoint + " failed: " + e.toString());
-                        errorCallback.onErrorResponse(new VolleyError(e));
+                @Override
+                public byte[] getBody() {
+                    return gzippedBody != null ? gzippedBody : super.getBody();
+                }
+
+                @Override
+                public Priority getPriority() {
+                    return priority;
+                }
+
+                // Volley marks each stage of a request. This one is when a network thread takes
+                // it off the queue, which is the end of the queue wait.
+                @Override
+                public void addMarker(String tag) {
+                    if ("network-queue-take".equals(tag)) {
+                        call.taken();
+                    }
+                    super.addMarker(tag);
+                }
+
+                // A 304 has no body, so answer it with the cached copy. Otherwise remember the
+                // validator that came with the new body.
+                @Override
+                protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                    call.received(response);
+                    // Counted here, on the network thread, so a 304 counts as the nothing it sent
+                    if (byteCounter != null && response.data != null) {
+                        byteCounter.addAndGet(response.data.length);
+                    }
+                    if (response.statusCode == NOT_MODIFIED && cached != null) {
+                        return Response.success(cached, null);
+                    }
+                    if (response.headers != null) {
+                        validator[0] = response.headers.get("ETag");
+                    }
+                    if (response.data == null) {
+                        return Response.error(new ParseError(response));
                     }
+                    return Response.success(response.data, null);
                 }
-            }, errorCallback);
+            };
+
+            // We keep our own cache of these responses, so Volley does not need to.
+            request.setShouldCache(false);
+
+            // Lets RequestScope.cancel() find this request in the queue
+            request.setTag(scope);
+
+            // Volley would retry a timeout once on its own, even for a POST. Retries are up to
+            // our backoff instead.
+            request.setRetryPolicy(new DefaultRetryPolicy(DefaultRetryPolicy.DEFAULT_TIMEOUT_MS,
+                    0, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
 
             // Send request
             queue.add(request);
         }
+
+        // Turns a response body into the result for the callee. A response the server marked as
+        // failed is thrown as a VolleyError with the server's message. The server always sends
+        // JSON as UTF-8.
+        abstract T parseBody(byte[] body) throws JSONException, IOException, VolleyError;
+
+        // Checks a response for errors and parses it for the callee. This runs on the parse
+        // thread; the callee's listeners are called on the main thread. Returns true if the
+        // response was good. call is the try it came from, or null for a cached response.
+        private boolean handleResponse(byte[] body, RequestMetrics.Call call) {
+            // Nobody is waiting for this any more, so do not spend time parsing it
+            if (isCancelled()) {
+                Log.d(TAG, "Dropping response for "+endpoint+", its "+scope+" is gone");
+                if (call != null) {
+                    call.finish();
+                }
+                return false;
+            }
+            long parseStart = System.nanoTime();
+            try {
+                final T result = parseBody(body);
+                onParsed(result);
+                if (call != null) {
+                    call.parsed(parseStart);
+                    call.finish();
+                }
+
+                // Send success to callee
+                Log.d(TAG, "Generic req to "+endpoint+" successful, handing off to callee");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            responseCallback.onResponse(result);
+                        }
+                    }
+                });
+                return true;
+            } catch (VolleyError e) {
+                Log.w(TAG, "Got a bad result for " + endpoint + ": " + e.getMessage());
+                if (call != null) {
+                    call.parsed(parseStart);
+                    call.fail(e);
+                }
+                postError(e);
+            } catch (JSONException | IOException e) {
+                // If parsing fails, we fail
+                Log.w(TAG, "Request to " + endpoint + " failed: " + e.toString());
+                if (call != null) {
+                    call.parsed(parseStart);
+                    call.fail(e);
+                }
+                postError(new VolleyError(e));
+            }
+            return false;
+        }
+
+        private void postError(final VolleyError error) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        errorCallback.onErrorResponse(error);
+                    }
+                }
+            });
+        }
+    }
+
+    // JsonTreeRequest is a GenericRequest for endpoints with small responses. The whole response is
+    // read into a JSONObject, checked for "result" and "error", and handed to parseResponse.
+    abstract class JsonTreeRequest<T> extends GenericRequest<T> {
+        abstract T parseResponse(JSONObject response) throws JSONException;
+
+        JsonTreeRequest(final String endpoint, int method, final Response.Listener<T> responseCallback,
+                        final Response.ErrorListener errorCallback) {
+            super(endpoint, method, responseCallback, errorCallback);
+        }
+
+        @Override
+        T parseBody(byte[] body) throws JSONException, IOException, VolleyError {
+            JSONObject response = new JSONObject(new String(body, "UTF-8"));
+
+            // Check for valid response
+            if (hasError(response)) {
+                throw new VolleyError(response.getString("error"));
+            }
+            return parseResponse(response);
+        }
+    }
+
+    // StreamingRequest is a GenericRequest for endpoints that send back a lot of data, like lists
+    // of posts. Instead of building the whole response as a JSONObject tree and then copying the
+    // fields out of it, it reads the response one field at a time with a JsonReader.
+    //
+    // Subclasses say what an empty result looks like with newResult(), and then get readField()
+    // for every top level field of the response other than "result" and "error". readField must
+    // consume the whole value, and should call reader.skipValue() for fields it does not want.
+    abstract class StreamingRequest<T> extends GenericRequest<T> {
+        abstract T newResult();
+        abstract void readField(String name, JsonReader reader, T result) throws IOException;
+
+        StreamingRequest(final String endpoint, int method, final Response.Listener<T> responseCallback,
+                         final Response.ErrorListener errorCallback) {
+            super(endpoint, method, responseCallback, errorCallback);
+        }
+
+        @Override
+        T parseBody(byte[] body) throws IOException, VolleyError {
+            T result = newResult();
+            int status = 0;
+            String error = null;
+
+            JsonReader reader = new JsonReader(new InputStreamReader(
+                    new ByteArrayInputStream(body), "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("result")) {
+                        status = reader.nextInt();
+                    }
+                    else if (name.equals("error")) {
+                        // The server sometimes sends error objects instead of strings
+                        if (reader.peek() == JsonToken.STRING) {
+                            error = reader.nextString();
+                        }
+                        else {
+                            reader.skipValue();
+                            error = "unknown error";
+                        }
+                    }
+                    else {
+                        readField(name, reader, result);
+                    }
+                }
+                reader.endObject();
+            } catch (IllegalStateException | NumberFormatException e) {
+                // JsonReader throws these when the JSON is not shaped like we expect
+                throw new IOException(e);
+            } finally {
+                reader.close();
+            }
+
+            // Check for valid response
+            if (error != null || status != 1) {
+                throw new VolleyError(error);
+            }
+            return result;
+        }
+    }
+
+    // LoginRequest is a GenericRequest for the login handlers, which answer with "success"
+    // instead of "result" and "error". The whole response is handed to parseResponse, which wraps
+    // it in a result class that knows how to read it.
+    abstract class LoginRequest<T> extends GenericRequest<T> {
+        abstract T parseResponse(JSONObject response) throws JSONException;
+
+        LoginRequest(final String endpoint, final Response.Listener<T> responseCallback,
+                     final Response.ErrorListener errorCallback) {
+            super(endpoint, Request.Method.POST, responseCallback, errorCallback);
+        }
+
+        @Override
+        T parseBody(byte[] body) throws JSONException, IOException {
+            return parseResponse(new JSONObject(new String(body, "UTF-8")));
+        }
+    }
+
+    // PostListRequest is a streaming GET for endpoints that answer with a "posts" array. It also
+    // offers to take the list in PostWire's binary format.
+    class PostListRequest extends StreamingRequest<ArrayList<PostInfo>> {
+        PostListRequest(final String endpoint, final Response.Listener<ArrayList<PostInfo>> responseCallback,
+                        final Response.ErrorListener errorCallback) {
+            super(endpoint, Request.Method.GET, responseCallback, errorCallback);
+            alternateType = PostWire.WIRE_TYPE;
+        }
+
+        @Override
+        void buildParameters(JSONObject args) throws JSONException {}
+
+        // The server may answer in the compact binary format instead of JSON.
+        @Override
+        ArrayList<PostInfo> parseBody(byte[] body) throws IOException, VolleyError {
+            if (PostWire.isWire(body)) {
+                return PostWire.decode(body).posts;
+            }
+            return super.parseBody(body);
+        }
+
+        @Override
+        void onParsed(ArrayList<PostInfo> posts) {
+            postStore.patch(posts);
+            postIndex.addAll(posts);
+        }
+
+        @Override
+        ArrayList<PostInfo> newResult() {
+            return new ArrayList<PostInfo>();
+        }
+
+        @Override
+        void readField(String name, JsonReader reader, ArrayList<PostInfo> posts) throws IOException {
+            if (name.equals("posts")) {
+                posts.addAll(PostInfo.readList(reader));
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    // OutboxRequest is for writes. Instead of going straight to the network, a write is saved in
+    // the outbox and sent from there, in order with every other write (see drainOutbox). Only the
+    // write itself is saved. If the app is killed before it is sent, it is still sent later, but
+    // its callbacks are gone.
+    //
+    // If the write can not be sent now, because there is no session or no network, the error
+    // callback gets an Outbox.QueuedError. Neither callback is called after that.
+    abstract class OutboxRequest<T> {
+        abstract void buildParameters(JSONObject args) throws JSONException;
+        abstract T parseResponse(JSONObject response) throws JSONException;
+
+        String endpoint;
+        Response.Listener<T> responseCallback;
+        Response.ErrorListener errorCallback;
+        // Set this before run() to replace any unsent write to the same endpoint.
+        boolean coalesce = false;
+
+        OutboxRequest(final String endpoint, final Response.Listener<T> responseCallback,
+                      final Response.ErrorListener errorCallback) {
+            this.endpoint = endpoint;
+            this.responseCallback = responseCallback;
+            this.errorCallback = errorCallback;
+        }
+
+        void run() {
+            JSONObject args = new JSONObject();
+            try {
+                buildParameters(args);
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to create JSON object for " + endpoint + "'s args:" + e.toString());
+                errorCallback.onErrorResponse(new VolleyError(e));
+                return;
+            }
+
+            // The key is made once, here, so every try of this write is the same to the server
+            Outbox.Entry entry = outbox.add(endpoint, args.toString(),
+                    UUID.randomUUID().toString(), coalesce);
+            outboxCallbacks.put(entry.id, this);
+
+            if (!hasSession()) {
+                Log.d(TAG, "No session, keeping write to "+endpoint+" until there is one");
+                failWaitingWrites();
+                return;
+            }
+            outboxFailures = 0;
+            drainOutbox();
+        }
+
+        // Hands the server's answer to the callee.
+        private void deliver(JSONObject response) {
+            T result;
+            try {
+                result = parseResponse(response);
+            } catch (JSONException e) {
+                Log.w(TAG, "Request to " + endpoint + " failed: " + e.toString());
+                errorCallback.onErrorResponse(new VolleyError(e));
+                return;
+            }
+            responseCallback.onResponse(result);
+        }
+    }
+
+    // The pair of callbacks for one caller waiting on a user lookup, and the caller's scope.
+    private static class UserLookupListeners {
+        final RequestScope scope;
+        final Response.Listener<UserInfo> responseCallback;
+        final Response.ErrorListener errorCallback;
+
+        UserLookupListeners(RequestScope scope, Response.Listener<UserInfo> responseCallback,
+                            Response.ErrorListener errorCallback) {
+            this.scope = scope;
+            this.responseCallback = responseCallback;
+            this.errorCallback = errorCallback;
+        }
+
+        boolean isCancelled() {
+            return scope != null && scope.isCancelled();
+        }
     }
 
     private boolean hasError(JSONObject response) throws JSONException {
@@ -713,6 +2256,68 @@ public class BackendClient {
         }
     }
 
+    // The posts for My Page, from getMyPage.
+    public class MyPagePosts {
+        private ArrayList<PostInfo> noMatches = new ArrayList<>();
+        private ArrayList<PostInfo> matches = new ArrayList<>();
+
+        // Posts the user is in by themselves
+        public ArrayList<PostInfo> getNoMatches() {
+            return noMatches;
+        }
+        // Posts the user shares with at least one other person
+        public ArrayList<PostInfo> getMatches() {
+            return matches;
+        }
+    }
+
+    // One page of posts from getPostPage, along with where the next page starts.
+    // It is filled in by the streaming request in getPostPage.
+    // Gives streamPosts the last page loaded into a list, which changes as the user scrolls.
+    public interface LoadedPages {
+        // The last page loaded, or null if none has been
+        PostPage last();
+    }
+
+    public class PostPage {
+        private ArrayList<PostInfo> posts = new ArrayList<>();
+        private Long nextAfterTime = null;
+        private String nextAfterId = null;
+        // The departure time window of the first page, for the pages after it. toMillis is null
+        // if the window has no end.
+        private long fromMillis;
+        private Long toMillis = null;
+
+        public ArrayList<PostInfo> getPosts() {
+            return posts;
+        }
+        public boolean hasMore() {
+            return nextAfterId != null;
+        }
+
+        // True if the post belongs in the pages up to this one: it leaves in their window, and
+        // no later than where the next page starts. The server rounds the window out to whole
+        // minutes, so this does too.
+        public boolean covers(PostInfo post) {
+            if (post.getDeparttime() == null) {
+                return false;
+            }
+            long departure = post.getDeparttime().getTime();
+            if (departure < fromMillis - fromMillis % WINDOW_STEP) {
+                return false;
+            }
+            if (toMillis != null
+                    && departure > toMillis + (WINDOW_STEP - toMillis % WINDOW_STEP) % WINDOW_STEP) {
+                return false;
+            }
+            if (!hasMore() || nextAfterTime == null) {
+                return true;
+            }
+            return departure < nextAfterTime
+                    || (departure == nextAfterTime && post.getId().compareTo(nextAfterId) <= 0);
+        }
+    }
+
     public class RegisterResult {
         private JSONObject data;
         RegisterResult(JSONObject data) { this.data = data; }
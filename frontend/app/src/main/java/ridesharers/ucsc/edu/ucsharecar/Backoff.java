@@ -0,0 +1,74 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import com.android.volley.NetworkError;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+import java.util.Random;
+
+/*
+ * Backoff says how BackendClient retries a request that failed on the way to or from the server.
+ * Each GenericRequest has one. Reads retry by default. Writes only retry if they also send an
+ * Idempotency-Key, so the server can tell a retry from a second request (see idempotency.js).
+ *
+ * Retries wait longer each time, up to a cap, and the wait is picked at random between zero and
+ * that. The randomness keeps a lot of phones that lost the server at the same moment from all
+ * coming back at the same moment too.
+ *
+ * Only failures that might go away are retried: timeouts, no connection, and 5xx responses. A
+ * response that says the request was bad will be just as bad the second time.
+ */
+class Backoff {
+
+    // Send once, never retry.
+    static final Backoff NONE = new Backoff(1, 0, 0);
+    // For GETs. They are cheap to repeat, but someone is usually waiting on the screen.
+    static final Backoff READ = new Backoff(3, 500, 4000);
+    // For writes with an Idempotency-Key. Losing one is worse than it being slow.
+    static final Backoff WRITE = new Backoff(5, 1000, 16000);
+    // For reconnecting PostStream. It never gives up while the screen is open, but waits up to a
+    // minute so a server that is down is not hammered.
+    static final Backoff STREAM = new Backoff(Integer.MAX_VALUE, 1000, 60000);
+
+    private static final Random random = new Random();
+
+    // Total number of tries, including the first
+    final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    Backoff(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    // Returns true if a request that failed with error on the given try (starting at 1) should
+    // be sent again.
+    boolean shouldRetry(int attempt, VolleyError error) {
+        return attempt < maxAttempts && isTransient(error);
+    }
+
+    // How long to wait before sending the next try after the given one failed. This is "full
+    // jitter": a random time between zero and base * 2^(attempt - 1), capped at the max.
+    long delayAfter(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt - 1, 20);
+        ceiling = Math.min(ceiling, maxDelayMillis);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    static boolean isTransient(VolleyError error) {
+        if (error instanceof TimeoutError) {
+            return true;
+        }
+        if (error instanceof ServerError) {
+            return error.networkResponse == null || error.networkResponse.statusCode >= 500;
+        }
+        // This includes NoConnectionError
+        return error instanceof NetworkError;
+    }
+}
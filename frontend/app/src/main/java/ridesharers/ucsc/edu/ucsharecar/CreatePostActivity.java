@@ -165,6 +165,13 @@ public class CreatePostActivity extends AppCompatActivity implements AdapterView
                     }, new Response.ErrorListener() {
                         @Override
                         public void onErrorResponse(VolleyError error) {
+                            // Saved to send later, so there is nothing more to do here
+                            if (error instanceof Outbox.QueuedError) {
+                                Toast.makeText(getApplicationContext(), error.getMessage(), Toast.LENGTH_LONG).show();
+                                Intent refresh_page_intent = new Intent(getApplicationContext(), PostListActivity.class);
+                                startActivity(refresh_page_intent);
+                                return;
+                            }
                             Toast.makeText(getApplicationContext(), (String) error.toString(), Toast.LENGTH_LONG).show();
                         }
                     });
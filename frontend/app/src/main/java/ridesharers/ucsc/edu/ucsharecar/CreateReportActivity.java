@@ -78,7 +78,8 @@ public class CreateReportActivity extends AppCompatActivity {
                             }
                         }, new ErrorListener() {
                             public void onErrorResponse(VolleyError error) {
-                                Toast.makeText(getApplicationContext(), error.toString(), Toast.LENGTH_LONG).show();
+                                String message = error instanceof Outbox.QueuedError ? error.getMessage() : error.toString();
+                                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show();
                             }
                         });
 
@@ -0,0 +1,82 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+/*
+ * Histogram counts non-negative long values in buckets whose width grows with the value, the way
+ * HdrHistogram does. Values from 0 to 2^SUB_BUCKET_BITS are counted exactly. Above that, each power
+ * of two is split into 2^SUB_BUCKET_BITS equal buckets. So a percentile read back is always
+ * within about 3% of the real value, whether the values are a few microseconds or a few seconds,
+ * and the whole histogram is one fixed array.
+ *
+ * It is not thread safe. RequestMetrics locks around it.
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // One group of buckets for the exact range, then one for each power of two above it
+    private static final int GROUPS = 64 - SUB_BUCKET_BITS + 1;
+
+    private final long[] counts = new long[GROUPS * SUB_BUCKETS];
+    private long total = 0;
+    private long max = 0;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    // Returns the value at or below which the given fraction of values fall, e.g. 0.99 for p99.
+    // The answer is the top of the bucket it lands in, so it errs high. 0 if nothing was recorded.
+    long percentile(double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        rank = Math.max(1, Math.min(rank, total));
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    // Bucket for a value: values below SUB_BUCKETS go in group 0 as they are. Larger ones go in
+    // the group for their highest set bit, in the sub-bucket given by the next SUB_BUCKET_BITS
+    // bits.
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int group = highestBit - SUB_BUCKET_BITS + 1;
+        int sub = (int) ((value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return group * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueIn(int index) {
+        int group = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (group == 0) {
+            return sub;
+        }
+        int shift = group - 1;
+        long lowest = ((long) (SUB_BUCKETS + sub)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -20,9 +20,6 @@ import android.widget.Toast;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.w3c.dom.Text;
 
 import java.util.ArrayList;
@@ -33,6 +30,8 @@ public class MyPage extends AppCompatActivity {
     private ListView uploadedView, matchedView;
     private ArrayList<PostInfo> uploaded, matched;
     private BackendClient backendClient;
+    // Requests for this screen, cancelled when it is destroyed
+    private RequestScope scope;
     ListViewAdapter uploadAdapter, matchedAdapter;
     private Context mContext;
 
@@ -50,11 +49,19 @@ public class MyPage extends AppCompatActivity {
         uploaded = new ArrayList<>();
         matched = new ArrayList<>();
         backendClient = BackendClient.getSingleton(this);
+        scope = backendClient.newScope(TAG);
 
         setUserInfo();
         setListView();
     }
 
+    @Override
+    protected void onDestroy() {
+        // Nothing should land in the lists once we are gone
+        scope.cancel();
+        super.onDestroy();
+    }
+
     private void setListView() {
         uploadAdapter = new ListViewAdapter(this, uploaded);
         matchedAdapter = new ListViewAdapter(this, matched);
@@ -63,26 +70,16 @@ public class MyPage extends AppCompatActivity {
         matchedView.setAdapter(matchedAdapter);
 
         //Update MyPage adapter lists
-        backendClient.getMyPage(new Response.Listener<JSONObject>() {
+        backendClient.getMyPage(scope, new Response.Listener<BackendClient.MyPagePosts>() {
             @Override
-            public void onResponse(JSONObject response) {
-                try {
-                    JSONArray noMatchArray = response.getJSONArray("no_matches");
-                    JSONArray matchArray = response.getJSONArray("matches");
-                    Log.e("no_matches", noMatchArray.toString());
-                    Log.e("matches", matchArray.toString());
-                    for (int i = 0; i < noMatchArray.length(); i++) {
-                        uploaded.add(new PostInfo(noMatchArray.getJSONObject(i)));
-                    }
-                    for (int i = 0; i < matchArray.length(); i++) {
-                        matched.add(new PostInfo(matchArray.getJSONObject(i)));
-                    }
-                    uploadAdapter.notifyDataSetChanged();
-                    matchedAdapter.notifyDataSetChanged();
-                }
-                catch(JSONException e) {
-
-                }
+            public void onResponse(BackendClient.MyPagePosts response) {
+                // This may be called again with fresher posts, so replace the lists
+                uploaded.clear();
+                matched.clear();
+                uploaded.addAll(response.getNoMatches());
+                matched.addAll(response.getMatches());
+                uploadAdapter.notifyDataSetChanged();
+                matchedAdapter.notifyDataSetChanged();
             }
         }, new Response.ErrorListener() {
             @Override
@@ -123,7 +120,7 @@ public class MyPage extends AppCompatActivity {
     }
 
     private void setUserInfo() {
-        backendClient.getUserById(backendClient.getUserId(), new Response.Listener<UserInfo>() {
+        backendClient.getUserById(scope, backendClient.getUserId(), new Response.Listener<UserInfo>() {
             @Override
             public void onResponse(UserInfo response) {
                 // Put their username in the text box
@@ -177,7 +174,8 @@ public class MyPage extends AppCompatActivity {
 
             viewHolder.origin.setText(postInfo.getStart());
             viewHolder.destination.setText(postInfo.getEnd());
-            viewHolder.departure_time.setText(postInfo.getDeparttime().toString().split("P")[0]);
+            viewHolder.departure_time.setText(postInfo.getDeparttime() == null
+                    ? "" : postInfo.getDeparttime().toString().split("P")[0]);
 
             return convertView;
         }
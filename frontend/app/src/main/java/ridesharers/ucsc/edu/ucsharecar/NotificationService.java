@@ -21,6 +21,10 @@ import com.google.firebase.messaging.RemoteMessage;
  * For some reason it only gets activated when messages have *only* data, no notification attribute.
  * So we only use data.
  *
+ * Messages about a post carry a delta of it (see notifications.js). We apply it to the PostStore
+ * as soon as it arrives, so the feed and My Page show it next time they load, and the notification
+ * opens the post straight from our copy instead of asking the server for it.
+ *
  * Note that this NotificationService should not try to get the BackendClient singleton while in the
  * background. This causes a crash. Right now, we try to only use it to send the token which should
  * only happen when the app is running (I hope.) TODO verify that
@@ -40,8 +44,15 @@ public class NotificationService extends FirebaseMessagingService {
         // Only process if we have a notification
         if (remoteMessage.getData().size() > 0) {
 
+            String postId = remoteMessage.getData().get("post_id");
+            PostStore store = PostStore.get(this);
+            PostStore.Delta delta = PostStore.Delta.fromMessage(remoteMessage.getData());
+            if (delta != null) {
+                store.apply(delta);
+            }
+
             // Send the notification
-            sendNotification(remoteMessage.getData().get("post_id"));
+            sendNotification(postId, store.get(postId));
         }
         else {
             Log.w(TAG, "Received a malformed message");
@@ -54,16 +65,24 @@ public class NotificationService extends FirebaseMessagingService {
         BackendClient.getSingleton(this).registerFCM(token);
     }
 
-    private void sendNotification(String postId) {
+    // post is our up to date copy of the post, or null if we do not have one
+    private void sendNotification(String postId, PostInfo post) {
         Log.d(TAG, "Sending notification with postId="+postId);
 
-        // Create the intent with the post
+        // Create the intent with the post. PostDetailActivity only has to look it up by id if we
+        // do not have it.
         Intent intent = new Intent(NotificationService.this, PostDetailActivity.class);
         intent.putExtra("post_id", postId);
+        if (post != null) {
+            intent.putExtra("post", post);
+        }
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        // One request code per post, so each post's notification keeps its own intent. A newer
+        // notification for the same post replaces the extras with its newer copy of the post.
+        int requestCode = postId == null ? 0 : postId.hashCode();
         PendingIntent pendingIntent = PendingIntent.getActivity(
-                NotificationService.this, 0 /* Request code */, intent,
-                PendingIntent.FLAG_ONE_SHOT);
+                NotificationService.this, requestCode, intent,
+                PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
 
         // Set some notification info
         String channelId = getString(R.string.default_notification_channel_id);
@@ -88,7 +107,7 @@ public class NotificationService extends FirebaseMessagingService {
             notificationManager.createNotificationChannel(channel);
         }
 
-        // Send the notification!
-        notificationManager.notify(0 /* ID of notification */, notificationBuilder.build());
+        // Send the notification! Each post gets its own, replacing any older one for that post.
+        notificationManager.notify(requestCode, notificationBuilder.build());
     }
 }
@@ -0,0 +1,198 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.volley.VolleyError;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/*
+ * Outbox holds the writes BackendClient has not gotten the server to accept yet, like new posts
+ * and joining a ride, in the order they were made. It is saved to disk every time it changes, so a
+ * post made with no signal is still sent after the app is killed and started again.
+ *
+ * BackendClient adds a write here before sending it, and removes it once the server has answered
+ * it, one way or the other. It sends them oldest first, and stops at the first one that could not
+ * get through, so they always reach the server in order. See BackendClient.drainOutbox.
+ *
+ * Each write keeps the Idempotency-Key it was first sent with. If the server got a write but the
+ * answer was lost, sending it again from here just gets the first answer back.
+ *
+ * Writes marked coalesce replace any earlier write to the same endpoint that is still waiting. This
+ * is for things like the FCM token, where only the newest one matters.
+ *
+ * The file lives in the app's files directory, not the cache, since Android must not delete it.
+ * It is read on the calling thread when the Outbox is made and written on a background thread.
+ * Everything else happens on the main thread, so nothing here is synchronized.
+ */
+class Outbox {
+
+    private static final String TAG = "UCShareCar_Outbox";
+    private static final String FILE = "outbox.json";
+
+    private final File file;
+    private final Executor writer = Executors.newSingleThreadExecutor();
+
+    // Oldest first
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private long nextId = 1;
+
+    Outbox(Context context) {
+        file = new File(context.getFilesDir(), FILE);
+        load();
+    }
+
+    // Adds a write to the end of the outbox and returns it.
+    Entry add(String endpoint, String body, String idempotencyKey, boolean coalesce) {
+        if (coalesce) {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                if (it.next().endpoint.equals(endpoint)) {
+                    it.remove();
+                }
+            }
+        }
+        Entry entry = new Entry(nextId++, endpoint, body, idempotencyKey, System.currentTimeMillis());
+        entries.add(entry);
+        save();
+        return entry;
+    }
+
+    // Returns up to count of the oldest writes, without removing them.
+    ArrayList<Entry> peek(int count) {
+        return new ArrayList<>(entries.subList(0, Math.min(count, entries.size())));
+    }
+
+    // Returns true if the write is still waiting, i.e. it was not replaced or removed.
+    boolean contains(Entry entry) {
+        return entries.contains(entry);
+    }
+
+    void remove(Entry entry) {
+        if (entries.remove(entry)) {
+            save();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Drops every waiting write. Used when the session ends, since writes are per user.
+    void clear() {
+        entries.clear();
+        save();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONArray array = new JSONArray(new String(data, 0, read, "UTF-8"));
+            for (int i = 0; i < array.length(); i++) {
+                Entry entry = new Entry(array.getJSONObject(i));
+                entries.add(entry);
+                nextId = Math.max(nextId, entry.id + 1);
+            }
+            Log.d(TAG, "Loaded "+entries.size()+" unsent writes");
+        } catch (IOException | JSONException e) {
+            // A broken file is dropped rather than sending something half read
+            Log.w(TAG, "Failed to read the outbox, starting empty: "+e.toString());
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        // Take the snapshot now, on the caller's thread, so writes land in the order they were made
+        JSONArray array = new JSONArray();
+        for (Entry entry : entries) {
+            try {
+                array.put(entry.getJSON());
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to save write to "+entry.endpoint+": "+e.toString());
+            }
+        }
+        final String json = array.toString();
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Write to a temp file and rename so a crash never leaves half an outbox
+                File tmp = new File(file.getPath() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(json.getBytes("UTF-8"));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write the outbox: "+e.toString());
+                    return;
+                }
+                if (!tmp.renameTo(file)) {
+                    Log.w(TAG, "Failed to move the outbox into place");
+                }
+            }
+        });
+    }
+
+    // One waiting write: where it goes, its JSON body, and the key it is sent with.
+    static class Entry {
+        final long id;
+        final String endpoint;
+        final String body;
+        final String idempotencyKey;
+        final long createdAt;
+
+        Entry(long id, String endpoint, String body, String idempotencyKey, long createdAt) {
+            this.id = id;
+            this.endpoint = endpoint;
+            this.body = body;
+            this.idempotencyKey = idempotencyKey;
+            this.createdAt = createdAt;
+        }
+
+        Entry(JSONObject data) throws JSONException {
+            this(data.getLong("id"), data.getString("endpoint"), data.getString("body"),
+                    data.optString("key", null), data.getLong("created"));
+        }
+
+        JSONObject getJSON() throws JSONException {
+            JSONObject data = new JSONObject();
+            data.put("id", id);
+            data.put("endpoint", endpoint);
+            data.put("body", body);
+            data.put("key", idempotencyKey);
+            data.put("created", createdAt);
+            return data;
+        }
+    }
+
+    // What a write's error callback gets when the write could not be sent yet, but is saved and
+    // will be sent later. Its message is fit to show the user.
+    static class QueuedError extends VolleyError {
+        QueuedError() {
+            super("You are offline. This will be sent when you are back online.");
+        }
+    }
+}
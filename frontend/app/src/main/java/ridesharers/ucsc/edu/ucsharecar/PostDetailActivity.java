@@ -39,6 +39,8 @@ public class PostDetailActivity extends AppCompatActivity {
     AlertDialog.Builder builder;
     AlertDialog popup;
     BackendClient backend;
+    // Requests for this screen, cancelled when it is destroyed
+    RequestScope scope;
     Context mContext;
 
     private PostInfo postInfo;
@@ -49,6 +51,7 @@ public class PostDetailActivity extends AppCompatActivity {
         setContentView(R.layout.activity_post_detail);
         mContext = this;
         backend = BackendClient.getSingleton(this);
+        scope = backend.newScope(TAG);
 
         Log.d(TAG, "onCreate: started.");
 
@@ -86,6 +89,11 @@ public class PostDetailActivity extends AppCompatActivity {
                                 @Override
                                 public void onErrorResponse(VolleyError error) {
                                     Log.e(TAG, error.toString());
+                                    if (error instanceof Outbox.QueuedError) {
+                                        Toast.makeText(getApplicationContext(), error.getMessage(), Toast.LENGTH_LONG).show();
+                                        finish();
+                                        return;
+                                    }
                                     Toast.makeText(getApplicationContext(), "No seats available", Toast.LENGTH_LONG).show();
                                 }
                             });
@@ -111,6 +119,11 @@ public class PostDetailActivity extends AppCompatActivity {
                         @Override
                         public void onErrorResponse(VolleyError error) {
 //                            Log.e(TAG, error.toString());
+                            if (error instanceof Outbox.QueuedError) {
+                                Toast.makeText(getApplicationContext(), error.getMessage(), Toast.LENGTH_LONG).show();
+                                finish();
+                                return;
+                            }
                             Toast.makeText(getApplicationContext(), "No seats available", Toast.LENGTH_LONG).show();
                         }
                     });
@@ -119,6 +132,13 @@ public class PostDetailActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        // Drop the post and user lookups for this screen, the views they fill are gone
+        scope.cancel();
+        super.onDestroy();
+    }
+
     private void getIncomingIntent(){
         Log.d(TAG, "getIncomingIntent: parsing intent extras.");
         Intent intent = getIntent();
@@ -131,7 +151,7 @@ public class PostDetailActivity extends AppCompatActivity {
         else if (intent.hasExtra("post_id")) {
             Log.d(TAG, "Received a post id, sending a request to populate the page");
 
-            backend.getPostById(intent.getStringExtra("post_id"), new Response.Listener<PostInfo>() {
+            backend.getPostById(scope, intent.getStringExtra("post_id"), new Response.Listener<PostInfo>() {
                 @Override
                 public void onResponse(PostInfo response) {
                     postInfo = response;
@@ -157,7 +177,8 @@ public class PostDetailActivity extends AppCompatActivity {
 
         TextView leaving_time = findViewById(R.id.leaving_time);
         // Split on "P" to get rid of the timezone (PDT, PST)
-        leaving_time.setText(postInfo.getDeparttime().toString().split("P")[0]);
+        leaving_time.setText(postInfo.getDeparttime() == null
+                ? "" : postInfo.getDeparttime().toString().split("P")[0]);
 
         TextView avail_seats = findViewById(R.id.avail_seats);
         avail_seats.setText(""+(postInfo.getTotalseats()-postInfo.getPassengers().size()));
@@ -224,7 +245,7 @@ public class PostDetailActivity extends AppCompatActivity {
             viewHolder.ucsc_id.setText("Loading...");
             viewHolder.phNum.setText("Loading...");
 
-            backend.getUserById(user_id, new Response.Listener<UserInfo>() {
+            backend.getUserById(scope, user_id, new Response.Listener<UserInfo>() {
                 @Override
                 public void onResponse(UserInfo response) {
                     Log.d(TAG, "Got user "+response.getName()+ " for position "+position);
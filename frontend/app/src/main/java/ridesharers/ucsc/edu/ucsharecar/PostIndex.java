@@ -0,0 +1,264 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/*
+ * PostIndex answers searches from the posts the app already has, with no network. BackendClient
+ * adds every post it parses, from the feed, searches, My Page and the live stream, and the search
+ * screen shows what the index finds right away while the server's answer is on its way.
+ *
+ * So that it does not keep rides that are gone, and does not grow for as long as the app runs,
+ * the index is rebuilt from the feed whenever the whole feed, or its first page, is loaded again.
+ * Posts deleted on the live stream are removed right away.
+ *
+ * When it is searched after a change, the index builds a Snapshot of the posts:
+ *	- every post in one array sorted by departure time, so a time range is two binary searches
+ *	- for each location, the positions in that array of the posts that start there, and of the
+ *	  posts that end there. Locations are numbered in PostWire.LOCATIONS order, with any others
+ *	  numbered after them as they are seen.
+ * Since positions are in departure order, each of those lists is too. A search cuts the start
+ * list and the end list down to the time range, then walks the two together once, like a merge:
+ * a position in both is a "same" result, one only in the start list is a "start" result, and one
+ * only in the end list is an "end" result. These are the groups /posts/search sends.
+ *
+ * Posts are added from the parse thread and searched from the main thread, so the set of posts is
+ * synchronized. A Snapshot never changes once built, so searching one needs no lock.
+ */
+class PostIndex {
+
+    // Every post we know, by id
+    private final HashMap<String, PostInfo> posts = new HashMap<>();
+    // Built on the first search after posts change
+    private Snapshot snapshot = null;
+
+    synchronized void addAll(Collection<PostInfo> list) {
+        for (PostInfo post : list) {
+            if (post.getId() != null) {
+                posts.put(post.getId(), post);
+            }
+        }
+        snapshot = null;
+    }
+
+    // Replaces every post in the index with the ones in list.
+    synchronized void replaceAll(Collection<PostInfo> list) {
+        posts.clear();
+        addAll(list);
+    }
+
+    synchronized void add(PostInfo post) {
+        if (post.getId() != null) {
+            posts.put(post.getId(), post);
+            snapshot = null;
+        }
+    }
+
+    synchronized void remove(String id) {
+        if (posts.remove(id) != null) {
+            snapshot = null;
+        }
+    }
+
+    synchronized void clear() {
+        posts.clear();
+        snapshot = null;
+    }
+
+    synchronized int size() {
+        return posts.size();
+    }
+
+    // Finds posts leaving between fromMillis and toMillis, inclusive, that start at start or end
+    // at end. With seatsOnly, posts with no seats left are skipped.
+    Result search(String start, String end, long fromMillis, long toMillis, boolean seatsOnly) {
+        Snapshot current;
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = new Snapshot(posts.values());
+            }
+            current = snapshot;
+        }
+        return current.search(start, end, fromMillis, toMillis, seatsOnly);
+    }
+
+    private static boolean hasSeats(PostInfo post) {
+        return post.getTotalseats() - post.getPassengers().size() > 0;
+    }
+
+    // Departure time to sort and range scan by. Posts without one go last.
+    private static long departureOf(PostInfo post) {
+        return post.getDeparttime() == null ? Long.MAX_VALUE : post.getDeparttime().getTime();
+    }
+
+    // The groups a search finds, each in departure order
+    static class Result {
+        // Start and end both match
+        final ArrayList<PostInfo> same = new ArrayList<>();
+        // Only the start matches
+        final ArrayList<PostInfo> start = new ArrayList<>();
+        // Only the end matches
+        final ArrayList<PostInfo> end = new ArrayList<>();
+
+        // All three groups in the order the search screen shows them
+        ArrayList<PostInfo> all() {
+            ArrayList<PostInfo> all = new ArrayList<>(same.size() + start.size() + end.size());
+            all.addAll(same);
+            all.addAll(start);
+            all.addAll(end);
+            return all;
+        }
+    }
+
+    private static class Snapshot {
+        private static final int[] NONE = new int[0];
+
+        final PostInfo[] byDeparture;
+        final long[] departures;
+        // Location name to its number
+        final HashMap<String, Integer> codes = new HashMap<>();
+        // Location number to the positions of posts starting, or ending, there
+        final int[][] byStart;
+        final int[][] byEnd;
+
+        Snapshot(Collection<PostInfo> posts) {
+            byDeparture = posts.toArray(new PostInfo[posts.size()]);
+            Arrays.sort(byDeparture, new Comparator<PostInfo>() {
+                @Override
+                public int compare(PostInfo a, PostInfo b) {
+                    long x = departureOf(a), y = departureOf(b);
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+
+            departures = new long[byDeparture.length];
+            for (String location : PostWire.LOCATIONS) {
+                codes.put(location, codes.size());
+            }
+            int[] startCodes = new int[byDeparture.length];
+            int[] endCodes = new int[byDeparture.length];
+            for (int i = 0; i < byDeparture.length; i++) {
+                departures[i] = departureOf(byDeparture[i]);
+                startCodes[i] = codeOf(byDeparture[i].getStart());
+                endCodes[i] = codeOf(byDeparture[i].getEnd());
+            }
+
+            byStart = postings(startCodes);
+            byEnd = postings(endCodes);
+        }
+
+        Result search(String start, String end, long fromMillis, long toMillis, boolean seatsOnly) {
+            Result result = new Result();
+            int[] starts = listFor(byStart, start);
+            int[] ends = listFor(byEnd, end);
+
+            // Positions lo (inclusive) to hi (exclusive) are in the time range
+            int lo = firstAtLeast(departures, fromMillis);
+            int hi = toMillis == Long.MAX_VALUE
+                    ? departures.length : firstAtLeast(departures, toMillis + 1);
+
+            int i = firstAtLeast(starts, lo), iEnd = firstAtLeast(starts, hi);
+            int j = firstAtLeast(ends, lo), jEnd = firstAtLeast(ends, hi);
+            while (i < iEnd || j < jEnd) {
+                int a = i < iEnd ? starts[i] : Integer.MAX_VALUE;
+                int b = j < jEnd ? ends[j] : Integer.MAX_VALUE;
+                ArrayList<PostInfo> group;
+                int position;
+                if (a == b) {
+                    group = result.same;
+                    position = a;
+                    i++;
+                    j++;
+                }
+                else if (a < b) {
+                    group = result.start;
+                    position = a;
+                    i++;
+                }
+                else {
+                    group = result.end;
+                    position = b;
+                    j++;
+                }
+
+                PostInfo post = byDeparture[position];
+                if (!seatsOnly || hasSeats(post)) {
+                    group.add(post);
+                }
+            }
+            return result;
+        }
+
+        private int codeOf(String location) {
+            if (location == null) {
+                return -1;
+            }
+            Integer code = codes.get(location);
+            if (code == null) {
+                code = codes.size();
+                codes.put(location, code);
+            }
+            return code;
+        }
+
+        private int[] listFor(int[][] lists, String location) {
+            Integer code = location == null ? null : codes.get(location);
+            return code == null ? NONE : lists[code];
+        }
+
+        // Turns each position's location number into a list of positions per location. Two
+        // passes, counting and then filling, so each list is one exactly sized array.
+        private int[][] postings(int[] codeAt) {
+            int[] counts = new int[codes.size()];
+            for (int code : codeAt) {
+                if (code >= 0) {
+                    counts[code]++;
+                }
+            }
+            int[][] lists = new int[codes.size()][];
+            for (int code = 0; code < lists.length; code++) {
+                lists[code] = counts[code] == 0 ? NONE : new int[counts[code]];
+                counts[code] = 0;
+            }
+            for (int position = 0; position < codeAt.length; position++) {
+                int code = codeAt[position];
+                if (code >= 0) {
+                    lists[code][counts[code]++] = position;
+                }
+            }
+            return lists;
+        }
+
+        // Index of the first value >= key in a sorted array, or its length if there is none
+        private static int firstAtLeast(long[] values, long key) {
+            int lo = 0, hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < key) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static int firstAtLeast(int[] values, int key) {
+            int lo = 0, hi = values.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < key) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -2,12 +2,15 @@ package ridesharers.ucsc.edu.ucsharecar;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 
@@ -19,6 +22,8 @@ public class PostInfo implements Parcelable {
     private String TAG = "PostInfo";
 
     private Date posttime, departtime;
+    // When the server last saved this post. Null for posts that have not been saved yet.
+    private Date updatedtime;
     private String start, end, memo;
     private boolean driverneeded;
     // ObjectId fields are saved as String
@@ -47,43 +52,111 @@ public class PostInfo implements Parcelable {
        loadFromJSON(raw);
     }
 
+    // Reads a post straight from a JsonReader positioned at the post's object, without building a
+    // JSONObject first. Used by BackendClient for big lists of posts. Fields we do not know about
+    // are skipped.
+    PostInfo(JsonReader reader) throws IOException {
+        String driver = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            // Optional fields may come as null
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "_id": this.id = reader.nextString(); break;
+                case "posttime": this.posttime = new Date(reader.nextLong()); break;
+                case "departtime": this.departtime = new Date(reader.nextLong()); break;
+                case "updatedtime": this.updatedtime = new Date(reader.nextLong()); break;
+                case "start": this.start = reader.nextString(); break;
+                case "end": this.end = reader.nextString(); break;
+                case "totalseats": this.totalseats = reader.nextInt(); break;
+                case "memo": this.memo = reader.nextString(); break;
+                case "uploader": this.uploader = reader.nextString(); break;
+                case "driverneeded": this.driverneeded = reader.nextBoolean(); break;
+                case "driver": driver = reader.nextString(); break;
+                case "passengers":
+                    this.passengers = new ArrayList<String>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        this.passengers.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Only _id is required, as in loadFromJSON. Any other field may be missing, and is left
+        // null, or 0 or false. Driver only counts if one is not needed.
+        if (this.id == null) {
+            throw new IOException("Post has no _id");
+        }
+        if (this.passengers == null) {
+            this.passengers = new ArrayList<String>();
+        }
+        this.driver = this.driverneeded ? null : driver;
+    }
+
+    // Reads a JSON array of posts from a JsonReader.
+    static ArrayList<PostInfo> readList(JsonReader reader) throws IOException {
+        ArrayList<PostInfo> posts = new ArrayList<PostInfo>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            posts.add(new PostInfo(reader));
+        }
+        reader.endArray();
+        return posts;
+    }
+
+    // Same rules as the JsonReader constructor: only _id is required, and any other field may be
+    // missing or null. A post from the server always has all of them, but the server does not
+    // insist on it, and getJSON leaves out the ones that are null.
     private void loadFromJSON(JSONObject raw) throws JSONException {
-        // First get fields that we know should be there
         this.id = raw.getString("_id"); // There should always be an _id in JSON we get from server
-        this.posttime = new Date(raw.getLong("posttime"));
-        this.departtime = new Date(raw.getLong("departtime"));
-        this.start = raw.getString("start");
-        this.end = raw.getString("end");
-        this.totalseats = raw.getInt("totalseats");
-        this.memo = raw.getString("memo");
-        this.uploader = raw.getString("uploader");
-        this.driverneeded = raw.getBoolean("driverneeded");
-        JSONArray tmp_passengers = raw.getJSONArray("passengers");
-        this.passengers = new ArrayList<String>(tmp_passengers.length());
-        for (int i = 0; i < tmp_passengers.length(); i++) {
+        this.posttime = optDate(raw, "posttime");
+        this.departtime = optDate(raw, "departtime");
+        this.updatedtime = optDate(raw, "updatedtime");
+        this.start = optString(raw, "start");
+        this.end = optString(raw, "end");
+        this.totalseats = raw.optInt("totalseats");
+        this.memo = optString(raw, "memo");
+        this.uploader = optString(raw, "uploader");
+        this.driverneeded = raw.optBoolean("driverneeded");
+        JSONArray tmp_passengers = raw.optJSONArray("passengers");
+        int count = tmp_passengers == null ? 0 : tmp_passengers.length();
+        this.passengers = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
             this.passengers.add(tmp_passengers.getString(i));
         }
 
-        // Driver is an optional field.
-        try {
-            if (!this.driverneeded) {
-                this.driver = raw.getString("driver");
-            }
-            else {
-                this.driver = null;
-            }
-        } catch (JSONException e) {
-            Log.w(TAG, "Could not get driver field from Post JSON object");
-            this.driver = null;
-        }
+        // Driver only counts if one is not needed
+        this.driver = this.driverneeded ? null : optString(raw, "driver");
+    }
+
+    // JSONObject.optString turns a missing field into "" and null into "null", so do it ourselves
+    private static String optString(JSONObject raw, String name) throws JSONException {
+        return raw.isNull(name) ? null : raw.getString(name);
+    }
+
+    private static Date optDate(JSONObject raw, String name) throws JSONException {
+        return raw.isNull(name) ? null : new Date(raw.getLong(name));
     }
 
     public JSONObject getJSON() throws JSONException {
         JSONObject res = new JSONObject();
         res.put("driverneeded", driverneeded);
         res.put("driver", driver);
-        res.put("posttime", posttime.getTime());
-        res.put("departtime", departtime.getTime());
+        // Null fields are left out, as put() does for null Strings
+        if (posttime != null) {
+            res.put("posttime", posttime.getTime());
+        }
+        if (departtime != null) {
+            res.put("departtime", departtime.getTime());
+        }
         res.put("start", start);
         res.put("end", end);
         res.put("totalseats", totalseats);
@@ -93,6 +166,9 @@ public class PostInfo implements Parcelable {
         if (id != null) {
             res.put("_id", id);
         }
+        if (updatedtime != null) {
+            res.put("updatedtime", updatedtime.getTime());
+        }
         return res;
     }
 
@@ -258,6 +334,14 @@ public class PostInfo implements Parcelable {
         this.departtime = departtime;
     }
 
+    public Date getUpdatedtime() {
+        return updatedtime;
+    }
+
+    public void setUpdatedtime(Date updatedtime) {
+        this.updatedtime = updatedtime;
+    }
+
     public String getId() {
         return id;
     }
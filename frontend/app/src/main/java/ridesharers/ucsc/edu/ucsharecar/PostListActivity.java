@@ -55,8 +55,28 @@ public class PostListActivity extends AppCompatActivity {
 
     //vars
     private ArrayList<PostInfo> postList = new ArrayList<>();
+    // True while postList holds search results instead of the whole feed
+    private boolean showingSearch = false;
+
+    // The feed is loaded a page at a time. lastPage is the newest page we got, or null if none.
+    private BackendClient.PostPage lastPage = null;
+    private boolean loadingPage = false;
+    // True once a page after the first has been added to postList
+    private boolean pagesAppended = false;
+    // Goes up every time postList is replaced, by search results or by the feed again, so answers
+    // to requests made for the old list are ignored
+    private int listGeneration = 0;
+    // Start loading the next page when the user is this many rows from the end
+    private static final int PAGE_PREFETCH_DISTANCE = 5;
+
+    private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
 
     private BackendClient backend;
+    // Requests for this screen, cancelled when it is destroyed
+    private RequestScope scope;
+    // Live changes to the feed while the screen is visible, or null
+    private PostStream stream = null;
     private Context postListContext = this;
     final PostListAdapter adapter = new PostListAdapter(postListContext, postList);
 
@@ -71,6 +91,7 @@ public class PostListActivity extends AppCompatActivity {
 
         // Get the backend object
         backend = BackendClient.getSingleton(this);
+        scope = backend.newScope(TAG);
         setupRecyclerView();
 
         //Button click for MyPage
@@ -137,12 +158,17 @@ public class PostListActivity extends AppCompatActivity {
                     String origin = originSpinner.getSelectedItem().toString();
                     String destination = destinationSpinner.getSelectedItem().toString();
 
-                    backend.getSearch(origin, destination, new Response.Listener<ArrayList<PostInfo>>() {
+                    // Show what we can find in the posts we already have right away, then
+                    // replace it with the server's answer when that comes
+                    final int generation = ++listGeneration;
+                    showSearchResults(backend.searchLocal(origin, destination));
+                    backend.getSearch(scope, origin, destination, new Response.Listener<ArrayList<PostInfo>>() {
                         @Override
                         public void onResponse(ArrayList<PostInfo> response) {
-                        postList.clear();
-                        postList.addAll(response);
-                        adapter.notifyDataSetChanged();
+                        // Skip it if the user went back to the feed or searched again
+                        if (generation == listGeneration) {
+                            showSearchResults(response);
+                        }
                         }
                     }, new Response.ErrorListener() {
                         @Override
@@ -168,10 +194,111 @@ public class PostListActivity extends AppCompatActivity {
             Intent intent = new Intent(this, LoginActivity.class);
             startActivity(intent);
         }
+        else if (!showingSearch) {
+            startStream();
+        }
+    }
+
+    // Seats filling up and new posts show up without a refresh. Only posts the pages loaded so far
+    // cover are added; the next page brings the rest.
+    private void startStream() {
+        stopStream();
+        stream = backend.streamPosts(scope, postList, new BackendClient.LoadedPages() {
+            @Override
+            public BackendClient.PostPage last() {
+                return lastPage;
+            }
+        }, new Response.Listener<ArrayList<PostInfo>>() {
+            @Override
+            public void onResponse(ArrayList<PostInfo> changed) {
+                adapter.notifyDataSetChanged();
+            }
+        });
+    }
+
+    @Override
+    public void onStop() {
+        // No need to hold a connection open for a screen nobody sees
+        stopStream();
+        super.onStop();
+    }
+
+    @Override
+    public void onBackPressed() {
+        // Back from search results goes to the feed, not out of the app
+        if (showingSearch) {
+            showFeed();
+        }
+        else {
+            super.onBackPressed();
+        }
+    }
+
+    private void showSearchResults(ArrayList<PostInfo> results) {
+        // The stream patches the feed, and this is not the feed any more
+        stopStream();
+        showingSearch = true;
+        postList.clear();
+        postList.addAll(results);
+        adapter.notifyDataSetChanged();
+    }
+
+    // Replaces search results with the feed again, loaded from its first page, and starts
+    // patching it with the stream and syncs again.
+    private void showFeed() {
+        showingSearch = false;
+        listGeneration++;
+        postList.clear();
+        adapter.notifyDataSetChanged();
+        lastPage = null;
+        pagesAppended = false;
+        // A page still on its way is for the old feed, and is skipped when it comes
+        loadingPage = false;
+        loadNextPage();
+        if (backend.hasSession()) {
+            startStream();
+        }
+    }
+
+    private void stopStream() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        scope.cancel();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onRestart() {
+        super.onRestart();
+
+        // Coming back to the feed (e.g. from creating or joining a post), fetch only what changed.
+        // Search results are left alone; they are not a copy of the feed.
+        if (showingSearch || !backend.hasSession()) {
+            return;
+        }
+        backend.syncPosts(scope, postList, lastPage, new Response.Listener<ArrayList<PostInfo>>() {
+            @Override
+            public void onResponse(ArrayList<PostInfo> changed) {
+                if (!changed.isEmpty()) {
+                    adapter.notifyDataSetChanged();
+                }
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                Log.w(TAG, "Could not sync posts: "+error.toString());
+            }
+        });
     }
 
     private void setupRecyclerView() {
-        RecyclerView recyclerView = findViewById(R.id.recycler_view);
+        recyclerView = findViewById(R.id.recycler_view);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
         recyclerView.setAdapter(adapter);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -182,18 +309,140 @@ public class PostListActivity extends AppCompatActivity {
 
         Log.d(TAG, "setupRecyclerView: init recycleview.");
 
-        backend.getAllPosts(new Response.Listener<ArrayList<PostInfo>>() {
+        // Load the next page when the user scrolls near the end of what we have, and warm the
+        // caches for the rows they stop on
+        layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
             @Override
-            public void onResponse(ArrayList<PostInfo> response) {
-                postList.addAll(response);
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prefetchVisible();
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy <= 0 || showingSearch) {
+                    return;
+                }
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (lastVisible >= adapter.getItemCount() - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        loadNextPage();
+    }
+
+    // Lets the backend prefetch what the rows on screen would need if they were opened.
+    private void prefetchVisible() {
+        backend.prefetch(scope, adapter.getPosts(layoutManager.findFirstVisibleItemPosition(),
+                layoutManager.findLastVisibleItemPosition()));
+    }
+
+    // Fetches the page of posts after the last one we have, or the first page if we have none.
+    private void loadNextPage() {
+        if (loadingPage || (lastPage != null && !lastPage.hasMore())) {
+            return;
+        }
+        loadingPage = true;
+
+        final BackendClient.PostPage previous = lastPage;
+        final int generation = listGeneration;
+        backend.getPostPage(scope, previous, new Response.Listener<BackendClient.PostPage>() {
+            @Override
+            public void onResponse(BackendClient.PostPage response) {
+                // Search results, or a new copy of the feed, replaced the list while we were
+                // loading
+                if (generation != listGeneration) {
+                    return;
+                }
+                loadingPage = false;
+                // The first page may be delivered twice (cached, then fresh), so it replaces
+                // the list. If the user already scrolled on to later pages, the fresh copy is
+                // merged into the rows instead, so those pages are kept. Later pages are appended,
+                // skipping posts a sync already added.
+                if (previous == null && pagesAppended) {
+                    mergeFirstPage(response.getPosts());
+                    adapter.notifyDataSetChanged();
+                    return;
+                }
+                if (previous == null) {
+                    postList.clear();
+                    postList.addAll(response.getPosts());
+                }
+                else {
+                    for (PostInfo post : response.getPosts()) {
+                        if (!containsPost(post.getId())) {
+                            postList.add(post);
+                        }
+                    }
+                    pagesAppended = true;
+                }
+                lastPage = response;
                 adapter.notifyDataSetChanged();
+
+                // The first rows are on screen without any scrolling, so prefetch for them once
+                // they have been laid out
+                if (previous == null) {
+                    recyclerView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            prefetchVisible();
+                        }
+                    });
+                }
             }
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
+                if (generation == listGeneration) {
+                    loadingPage = false;
+                }
                 Log.e(TAG, error.toString());
                 Toast.makeText(getApplicationContext(), (String) error.toString(), Toast.LENGTH_LONG).show();
             }
         });
     }
+
+    private boolean containsPost(String id) {
+        return indexOfPost(id) >= 0;
+    }
+
+    private int indexOfPost(String id) {
+        for (int i = 0; i < postList.size(); i++) {
+            if (postList.get(i).getId().equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Merges a fresh first page into a list that already has later pages after it. Posts we have
+    // are replaced where they are. New posts are put in departure order, unless they leave after
+    // the last row we have; the next page will bring those. Rows the fresh page no longer has are
+    // left alone, since they may only have moved to the second page.
+    private void mergeFirstPage(ArrayList<PostInfo> fresh) {
+        for (PostInfo post : fresh) {
+            int at = indexOfPost(post.getId());
+            if (at >= 0) {
+                postList.set(at, post);
+                continue;
+            }
+
+            int insertAt = 0;
+            while (insertAt < postList.size()
+                    && departureOf(postList.get(insertAt)) <= departureOf(post)) {
+                insertAt++;
+            }
+            if (insertAt < postList.size() || !lastPage.hasMore()) {
+                postList.add(insertAt, post);
+            }
+        }
+    }
+
+    private static long departureOf(PostInfo post) {
+        return post.getDeparttime() == null ? Long.MAX_VALUE : post.getDeparttime().getTime();
+    }
 }
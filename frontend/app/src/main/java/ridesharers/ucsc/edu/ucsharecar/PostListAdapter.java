@@ -56,14 +56,17 @@ public class PostListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         Log.e(TAG, "" + position);
         final PostListViewHolder post_holder = (PostListViewHolder) holder;
 
-        post_holder.origin = postInfo.getStart().toString();
-        post_holder.destination = postInfo.getEnd().toString();
-        post_holder.departure_time = postInfo.getDeparttime().toString();
+        // Any of these may be null if the server left them out
+        post_holder.origin = postInfo.getStart();
+        post_holder.destination = postInfo.getEnd();
+        post_holder.departure_time = postInfo.getDeparttime() == null
+                ? "" : postInfo.getDeparttime().toString();
 
         post_holder.driver_status = postInfo.isDriverneeded();
-        post_holder.posttime = postInfo.getPosttime().toString();
-        post_holder.memo = postInfo.getMemo().toString();
-        post_holder.uploader = postInfo.getUploader().toString();
+        post_holder.posttime = postInfo.getPosttime() == null
+                ? "" : postInfo.getPosttime().toString();
+        post_holder.memo = postInfo.getMemo();
+        post_holder.uploader = postInfo.getUploader();
         post_holder.totalseats = postInfo.getTotalseats();
         post_holder.passengers = postInfo.getPassengers();
 
@@ -96,4 +99,17 @@ public class PostListAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
     public int getItemCount() {
         return postList.size();
     }
+
+    // Returns the posts in rows first through last, inclusive, e.g. the ones on screen. Positions
+    // outside the list are ignored, and RecyclerView.NO_POSITION gives an empty list.
+    public ArrayList<PostInfo> getPosts(int first, int last) {
+        ArrayList<PostInfo> posts = new ArrayList<>();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return posts;
+        }
+        for (int i = Math.max(first, 0); i <= last && i < postList.size(); i++) {
+            posts.add(postList.get(i));
+        }
+        return posts;
+    }
 }
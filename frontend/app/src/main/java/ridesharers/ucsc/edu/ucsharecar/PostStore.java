@@ -0,0 +1,304 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * PostStore keeps what we know about posts locally, so a change the server pushes to us in a
+ * notification can be shown without asking the server for the post again. It holds two things:
+ *	- the latest copy of the posts the user is in, since those are the posts notifications are
+ *	  about. BackendClient saves them from My Page and from post lookups.
+ *	- the newest Delta heard for each post. A Delta is the part of a post that joining a ride
+ *	  changes (driver, seats and passengers), as sent by notifications.js.
+ *
+ * Deltas are applied to the saved copy right away, and to every post BackendClient parses after
+ * that, cached or fresh, until a copy at least as new as the Delta comes from the server. That way
+ * the feed, My Page and the post screen all show the change, even from a stale cached response.
+ *
+ * Applying a Delta never changes a post's updatedtime. syncPosts uses the newest updatedtime in a
+ * list as its watermark, and a patched post must not make it skip changes it has not fetched.
+ *
+ * NotificationService uses this without BackendClient (see its header comment), so it is its own
+ * singleton. It is saved to SharedPreferences on every change, like UserCache. Notifications
+ * arrive on a background thread and BackendClient parses on another, so every method is
+ * synchronized.
+ */
+class PostStore {
+
+    private static final String TAG = "UCShareCar_PostStore";
+
+    // Shared preferences identifier string and keys
+    private static final String PREFS = "ridesharers.ucsc.edu.ucsharecar.posts";
+    private static final String POSTS_KEY = "posts";
+    private static final String DELTAS_KEY = "deltas";
+
+    // Users are in few posts at once, so these limits are only there to stop runaway growth
+    private static final int MAX_POSTS = 100;
+    private static final int MAX_DELTAS = 100;
+
+    private static PostStore instance = null;
+
+    private final SharedPreferences storage;
+    // Both are least recently changed first. Null until loaded from storage.
+    private LinkedHashMap<String, PostInfo> posts = null;
+    private LinkedHashMap<String, Delta> deltas = null;
+
+    static synchronized PostStore get(Context context) {
+        if (instance == null) {
+            instance = new PostStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PostStore(Context context) {
+        storage = context.getSharedPreferences(PREFS, 0);
+    }
+
+    // Returns a copy of our post with the given id, with any newer Delta applied, or null if we
+    // do not have one.
+    synchronized PostInfo get(String id) {
+        load();
+        PostInfo post = posts.get(id);
+        return post == null ? null : copyOf(post);
+    }
+
+    // Saves a copy of a post the user is in, after applying any newer Delta to it. The store
+    // keeps its own copies, since it changes them from whatever thread a Delta arrives on.
+    synchronized void remember(PostInfo post) {
+        if (post.getId() == null) {
+            return;
+        }
+        load();
+        PostInfo copy = copyOf(post);
+        if (copy == null) {
+            return;
+        }
+        apply(copy);
+        posts.remove(copy.getId());
+        posts.put(copy.getId(), copy);
+        trim(posts, MAX_POSTS);
+        save();
+    }
+
+    // Records a Delta heard from the server and applies it to our copy of its post. Deltas older
+    // than the newest one we have for the post are ignored, since notifications may arrive out of
+    // order. Returns true if the Delta was new.
+    synchronized boolean apply(Delta delta) {
+        load();
+        Delta newest = deltas.get(delta.postId);
+        if (newest != null && newest.updatedtime >= delta.updatedtime) {
+            return false;
+        }
+        deltas.remove(delta.postId);
+        deltas.put(delta.postId, delta);
+        trim(deltas, MAX_DELTAS);
+
+        PostInfo post = posts.get(delta.postId);
+        if (post != null) {
+            apply(post);
+        }
+        save();
+        return true;
+    }
+
+    // Applies newer Deltas to posts fresh from BackendClient, in place. Returns the posts that
+    // were changed.
+    synchronized ArrayList<PostInfo> patch(Collection<PostInfo> list) {
+        load();
+        ArrayList<PostInfo> changed = new ArrayList<>();
+        if (deltas.isEmpty()) {
+            return changed;
+        }
+        int before = deltas.size();
+        for (PostInfo post : list) {
+            if (apply(post)) {
+                changed.add(post);
+            }
+        }
+        if (deltas.size() != before) {
+            save();
+        }
+        return changed;
+    }
+
+    // Forgets everything. Used when the session ends, since posts and deltas are per user.
+    synchronized void clear() {
+        load();
+        posts.clear();
+        deltas.clear();
+        save();
+    }
+
+    // Applies the Delta for a post to it, if it is newer than the post. A Delta the post has
+    // caught up with is dropped. Returns true if the post was changed.
+    private boolean apply(PostInfo post) {
+        Delta delta = deltas.get(post.getId());
+        if (delta == null) {
+            return false;
+        }
+        if (post.getUpdatedtime() != null && post.getUpdatedtime().getTime() >= delta.updatedtime) {
+            deltas.remove(post.getId());
+            return false;
+        }
+        delta.applyTo(post);
+        return true;
+    }
+
+    private static PostInfo copyOf(PostInfo post) {
+        try {
+            return new PostInfo(post.getJSON());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to copy post "+post.getId()+": "+e.toString());
+            return null;
+        }
+    }
+
+    private static void trim(LinkedHashMap<String, ?> map, int max) {
+        Iterator<String> it = map.keySet().iterator();
+        while (map.size() > max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    // Reads the saved posts and deltas from storage the first time we need them.
+    private void load() {
+        if (posts != null) {
+            return;
+        }
+        posts = new LinkedHashMap<>();
+        deltas = new LinkedHashMap<>();
+
+        try {
+            JSONArray savedPosts = new JSONArray(storage.getString(POSTS_KEY, "[]"));
+            for (int i = 0; i < savedPosts.length(); i++) {
+                PostInfo post = new PostInfo(savedPosts.getJSONObject(i));
+                posts.put(post.getId(), post);
+            }
+            JSONArray savedDeltas = new JSONArray(storage.getString(DELTAS_KEY, "[]"));
+            for (int i = 0; i < savedDeltas.length(); i++) {
+                Delta delta = new Delta(savedDeltas.getJSONObject(i));
+                deltas.put(delta.postId, delta);
+            }
+            Log.d(TAG, "Loaded "+posts.size()+" posts and "+deltas.size()+" deltas from storage");
+        } catch (JSONException e) {
+            Log.w(TAG, "Saved posts are corrupt, starting empty: "+e.toString());
+            posts.clear();
+            deltas.clear();
+        }
+    }
+
+    // Writes everything to storage. apply() does the disk write in the background.
+    private void save() {
+        JSONArray savedPosts = new JSONArray();
+        JSONArray savedDeltas = new JSONArray();
+        try {
+            for (PostInfo post : posts.values()) {
+                savedPosts.put(post.getJSON());
+            }
+            for (Delta delta : deltas.values()) {
+                savedDeltas.put(delta.getJSON());
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to save posts: "+e.toString());
+            return;
+        }
+
+        SharedPreferences.Editor editor = storage.edit();
+        editor.putString(POSTS_KEY, savedPosts.toString());
+        editor.putString(DELTAS_KEY, savedDeltas.toString());
+        editor.apply();
+    }
+
+    // The fields of a post that joining a ride changes, as of when the server saved it.
+    static class Delta {
+        final String postId;
+        final long updatedtime;
+        final String driver;
+        final boolean driverneeded;
+        final int totalseats;
+        final List<String> passengers;
+
+        Delta(String postId, long updatedtime, String driver, boolean driverneeded, int totalseats,
+              List<String> passengers) {
+            this.postId = postId;
+            this.updatedtime = updatedtime;
+            this.driver = driver;
+            this.driverneeded = driverneeded;
+            this.totalseats = totalseats;
+            this.passengers = passengers;
+        }
+
+        Delta(JSONObject raw) throws JSONException {
+            this(raw.getString("post_id"), raw.getLong("updatedtime"),
+                    raw.isNull("driver") ? null : raw.getString("driver"),
+                    raw.getBoolean("driverneeded"), raw.getInt("totalseats"),
+                    toList(raw.getJSONArray("passengers")));
+        }
+
+        // Reads a Delta from the data of an FCM message. Every value there is a string; see
+        // post_delta() in notifications.js. Returns null if the message has no Delta, e.g. it
+        // came from an older server.
+        static Delta fromMessage(Map<String, String> data) {
+            String postId = data.get("post_id");
+            String updatedtime = data.get("updatedtime");
+            String totalseats = data.get("totalseats");
+            if (postId == null || updatedtime == null || totalseats == null) {
+                return null;
+            }
+
+            String driver = data.get("driver");
+            String passengers = data.get("passengers");
+            try {
+                return new Delta(postId, Long.parseLong(updatedtime),
+                        driver == null || driver.isEmpty() ? null : driver,
+                        "1".equals(data.get("driverneeded")), Integer.parseInt(totalseats),
+                        passengers == null || passengers.isEmpty()
+                                ? new ArrayList<String>()
+                                : Arrays.asList(passengers.split(",")));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Message for post "+postId+" has a malformed delta: "+e.toString());
+                return null;
+            }
+        }
+
+        void applyTo(PostInfo post) {
+            post.setDriver(driver);
+            post.setDriverneeded(driverneeded);
+            post.setTotalseats(totalseats);
+            post.setPassengers(new ArrayList<>(passengers));
+        }
+
+        JSONObject getJSON() throws JSONException {
+            JSONObject raw = new JSONObject();
+            raw.put("post_id", postId);
+            raw.put("updatedtime", updatedtime);
+            raw.put("driver", driver == null ? JSONObject.NULL : driver);
+            raw.put("driverneeded", driverneeded);
+            raw.put("totalseats", totalseats);
+            raw.put("passengers", new JSONArray(passengers));
+            return raw;
+        }
+
+        private static List<String> toList(JSONArray array) throws JSONException {
+            ArrayList<String> list = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                list.add(array.getString(i));
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.os.Handler;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+ * PostStream listens to the server's live stream of post changes (GET /posts/stream in app.js),
+ * so a screen showing posts hears about new posts, filled seats and deleted posts as they happen
+ * instead of polling. Get one from BackendClient.streamPosts(), which also patches the list on
+ * screen with what comes in.
+ *
+ * The stream is server-sent events over a plain HttpURLConnection that stays open, read on its own
+ * thread. Volley is no use here since it wants whole responses. The session cookie comes from the
+ * default CookieHandler that BackendClient sets up.
+ *
+ * If the connection drops, it reconnects after a Backoff.STREAM wait and sends the id of the last
+ * event it got, so the server sends only what was missed. If the server no longer has those
+ * events, it sends a "reset" event and the listener has to fetch again.
+ *
+ * Events are parsed on the stream's thread and handed to the listener on the main thread. Nothing
+ * is delivered after close().
+ */
+public class PostStream {
+
+    private static final String TAG = "UCShareCar_PostStream";
+
+    // The server sends a heartbeat every 25 seconds, so a read this long without one means the
+    // connection is dead even if the socket has not noticed yet.
+    private static final int READ_TIMEOUT_MS = 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    private final String url;
+    // The screen this stream is for, or null. The stream closes itself once it is cancelled.
+    private final RequestScope scope;
+    private final Listener listener;
+    private final Handler mainHandler;
+
+    // Read and written from the stream thread and the main thread
+    private volatile String lastEventId;
+    private volatile boolean closed = false;
+    private volatile HttpURLConnection connection = null;
+    private Thread thread;
+
+    PostStream(String url, String lastEventId, RequestScope scope, Handler mainHandler,
+               Listener listener) {
+        this.url = url;
+        this.lastEventId = lastEventId;
+        this.scope = scope;
+        this.mainHandler = mainHandler;
+        this.listener = listener;
+    }
+
+    void start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the stream for good. Safe to call more than once.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        // Unblocks a read in progress
+        HttpURLConnection current = connection;
+        if (current != null) {
+            current.disconnect();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // The id of the last event received, to resume from. Null if none yet.
+    String getLastEventId() {
+        return lastEventId;
+    }
+
+    private void loop() {
+        int attempt = 0;
+        while (!closed) {
+            if (scope != null && scope.isCancelled()) {
+                close();
+                return;
+            }
+            try {
+                if (read()) {
+                    // We got at least one event in, so the next failure starts backing off anew
+                    attempt = 0;
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Stream dropped: "+e.toString());
+            } catch (SessionError e) {
+                Log.w(TAG, "Stream refused, not a valid session. Giving up.");
+                close();
+                return;
+            }
+            if (closed) {
+                return;
+            }
+
+            attempt++;
+            long delay = Backoff.STREAM.delayAfter(attempt);
+            Log.d(TAG, "Reconnecting in "+delay+"ms (attempt "+attempt+")");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Opens the stream and reads events until it ends. Returns true if any events came in.
+    private boolean read() throws IOException, SessionError {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestProperty("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            conn.setRequestProperty("Last-Event-ID", lastEventId);
+        }
+        connection = conn;
+        boolean received = false;
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Stream answered with status "+conn.getResponseCode());
+            }
+            // The session check answers with JSON instead of a stream
+            String type = conn.getContentType();
+            if (type == null || !type.startsWith("text/event-stream")) {
+                throw new SessionError();
+            }
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(conn.getInputStream(), "UTF-8"));
+            String id = null, event = null;
+            StringBuilder data = new StringBuilder();
+            String line;
+            while (!closed && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // A blank line ends an event
+                    if (event != null) {
+                        dispatch(id, event, data.toString());
+                        received = true;
+                    }
+                    id = null;
+                    event = null;
+                    data.setLength(0);
+                }
+                else if (line.startsWith(":")) {
+                    // Comment, i.e. a heartbeat
+                }
+                else if (line.startsWith("id:")) {
+                    id = valueOf(line, 3);
+                }
+                else if (line.startsWith("event:")) {
+                    event = valueOf(line, 6);
+                }
+                else if (line.startsWith("data:")) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(valueOf(line, 5));
+                }
+            }
+        } finally {
+            connection = null;
+            conn.disconnect();
+        }
+        return received;
+    }
+
+    private static void closeQuietly(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // Nothing to do, it only reads from a string
+        }
+    }
+
+    // A field's value is everything after the colon, less one leading space
+    private static String valueOf(String line, int colon) {
+        String value = line.substring(colon);
+        return value.startsWith(" ") ? value.substring(1) : value;
+    }
+
+    private void dispatch(String id, String type, String data) {
+        final Event event = new Event(id, type);
+        // Read with the same lenient JsonReader constructor as the lists of posts, so a post the
+        // list would show is not dropped here for missing a field.
+        JsonReader reader = new JsonReader(new StringReader(data));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                }
+                else if (name.equals("post")) {
+                    event.post = new PostInfo(reader);
+                }
+                else if (name.equals("post_id")) {
+                    event.postId = reader.nextString();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (event.post != null) {
+                event.postId = event.post.getId();
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, "Skipping malformed "+type+" event: "+e.toString());
+            return;
+        } finally {
+            // Even a bad event was sent, so there is no point getting it again
+            if (id != null) {
+                lastEventId = id;
+            }
+            closeQuietly(reader);
+        }
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (scope != null && scope.isCancelled()) {
+                    close();
+                }
+                if (!closed) {
+                    listener.onEvent(event);
+                }
+            }
+        });
+    }
+
+    // One change from the server. type is "create", "update" or "delete", or "ready" and "reset"
+    // when (re)connecting (see app.js). post is set for create and update, postId for all three.
+    static class Event {
+        final String id;
+        final String type;
+        PostInfo post = null;
+        String postId = null;
+
+        Event(String id, String type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    interface Listener {
+        // Called on the main thread
+        void onEvent(Event event);
+    }
+
+    private static class SessionError extends Exception {}
+}
@@ -0,0 +1,184 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+
+/*
+ * PostWire decodes the compact binary format the server can send lists of posts in, instead of
+ * JSON. BackendClient asks for it with the Accept header on the post list endpoints, and falls back
+ * to JSON if the server sends that instead.
+ *
+ * The format is documented in backend/wire.js, which is the encoder. The two must be kept in sync,
+ * including the order of LOCATIONS. Both decode a post to the same PostInfo as its JSON, which
+ * PostWireTest checks with bytes made by wire.js.
+ *
+ * Version 1 always sent start, end and memo. Version 2 flags them, so a missing one is null, as it
+ * is in JSON. Both are read, since the disk cache may still hold version 1 responses.
+ */
+class PostWire {
+
+    static final String WIRE_TYPE = "application/x-ucsharecar-posts";
+
+    // "UCW", followed by the format version
+    private static final byte[] MAGIC = {0x55, 0x43, 0x57};
+    private static final int OLDEST_VERSION = 1, VERSION = 2;
+
+    // StartingLocations from strings.xml, in order. Locations are sent as an index into this list.
+    static final String[] LOCATIONS = {
+            "College Nine",
+            "College Ten",
+            "McHenry Library",
+            "Science Hill",
+            "Beach Boardwalk",
+            "Woodstock's Pizza",
+            "San Jose Diridon Station",
+    };
+
+    private static final int DRIVERNEEDED = 1, HAS_DRIVER = 2, HAS_UPLOADER = 4,
+            HAS_DEPARTTIME = 8, HAS_UPDATEDTIME = 16, HAS_START = 32, HAS_END = 64, HAS_MEMO = 128;
+
+    private static final int OBJECT_ID_LENGTH = 12;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Returns true if body is in this format rather than JSON.
+    static boolean isWire(byte[] body) {
+        if (body == null || body.length < MAGIC.length + 1) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (body[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        int version = body[MAGIC.length];
+        return version >= OLDEST_VERSION && version <= VERSION;
+    }
+
+    // Decodes a whole response. Throws IOException if it is cut off or malformed.
+    static Decoded decode(byte[] body) throws IOException {
+        if (!isWire(body)) {
+            throw new IOException("Not a post wire response");
+        }
+        int version = body[MAGIC.length];
+        Reader in = new Reader(body, MAGIC.length + 1);
+        Decoded result = new Decoded();
+
+        long count = in.varint();
+        result.posts = new ArrayList<>((int) Math.min(count, 1024));
+        for (long i = 0; i < count; i++) {
+            result.posts.add(readPost(in, version));
+        }
+
+        if (in.readByte() == 1) {
+            result.nextAfterTime = in.varint();
+            result.nextAfterId = in.objectId();
+        }
+        return result;
+    }
+
+    private static PostInfo readPost(Reader in, int version) throws IOException {
+        String id = in.objectId();
+        int flags = in.readByte();
+        // Version 1 always has start, end and memo
+        if (version == 1) {
+            flags |= HAS_START | HAS_END | HAS_MEMO;
+        }
+        Date posttime = new Date(in.varint());
+        Date departtime = (flags & HAS_DEPARTTIME) != 0 ? new Date(in.varint()) : null;
+        Date updatedtime = (flags & HAS_UPDATEDTIME) != 0 ? new Date(in.varint()) : null;
+        String start = (flags & HAS_START) != 0 ? in.location() : null;
+        String end = (flags & HAS_END) != 0 ? in.location() : null;
+        int totalseats = (int) in.varint();
+        String memo = (flags & HAS_MEMO) != 0 ? in.string() : null;
+        String uploader = (flags & HAS_UPLOADER) != 0 ? in.objectId() : null;
+        String driver = (flags & HAS_DRIVER) != 0 ? in.objectId() : null;
+        long passengerCount = in.varint();
+        ArrayList<String> passengers = new ArrayList<>((int) Math.min(passengerCount, 16));
+        for (long i = 0; i < passengerCount; i++) {
+            passengers.add(in.objectId());
+        }
+
+        boolean driverneeded = (flags & DRIVERNEEDED) != 0;
+        PostInfo post = new PostInfo(posttime, departtime, start, end, memo, driverneeded,
+                driverneeded ? null : driver, uploader, passengers, totalseats);
+        post.setId(id);
+        post.setUpdatedtime(updatedtime);
+        return post;
+    }
+
+    // What decode() found: the posts, and the cursor for the next page if the server sent one.
+    static class Decoded {
+        ArrayList<PostInfo> posts;
+        Long nextAfterTime = null;
+        String nextAfterId = null;
+    }
+
+    // Reader walks through the body, throwing if it runs off the end.
+    private static class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private void need(int n) throws IOException {
+            if (pos + n > data.length) {
+                throw new IOException("Post wire response is cut off");
+            }
+        }
+
+        int readByte() throws IOException {
+            need(1);
+            return data[pos++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Varint is too long");
+        }
+
+        String string() throws IOException {
+            int length = (int) varint();
+            need(length);
+            String s = new String(data, pos, length, UTF8);
+            pos += length;
+            return s;
+        }
+
+        // ObjectIds are sent as 12 bytes and turned back into the usual 24 character hex string.
+        String objectId() throws IOException {
+            need(OBJECT_ID_LENGTH);
+            char[] hex = new char[OBJECT_ID_LENGTH * 2];
+            for (int i = 0; i < OBJECT_ID_LENGTH; i++) {
+                int b = data[pos + i] & 0xFF;
+                hex[i * 2] = HEX[b >>> 4];
+                hex[i * 2 + 1] = HEX[b & 0x0F];
+            }
+            pos += OBJECT_ID_LENGTH;
+            return new String(hex);
+        }
+
+        String location() throws IOException {
+            int index = (int) varint();
+            if (index == 0) {
+                return string();
+            }
+            if (index > LOCATIONS.length) {
+                throw new IOException("Unknown location " + index);
+            }
+            return LOCATIONS[index - 1];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.VolleyError;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * RequestMetrics keeps track of where the time goes for every request BackendClient sends, split
+ * up by endpoint. For each try of a request it records:
+ *	- queue wait: from handing the request to Volley until a network thread picks it up
+ *	- network time: Volley's measure of the HTTP exchange, including retries of a redirect
+ *	- parse time: turning the body into the result on the parse thread
+ *	- response bytes: the size of the body after HttpURLConnection has un-gzipped it
+ *	- errors, counted by the class of the VolleyError (TimeoutError, ParseError, ...)
+ * Times are kept in microseconds in Histograms, so p50 and p99 stay accurate for both tiny and
+ * huge values without keeping every sample.
+ *
+ * Endpoints are grouped by their first two path segments, so /posts/by_id/<id> and
+ * /posts/search/<start>/<end> each count as one endpoint, and the query string is ignored.
+ *
+ * Requests are timed on Volley's threads and the parse thread, so everything is synchronized on
+ * this object. Call report() for a table of the numbers so far; BackendClient.dumpMetrics() logs it.
+ */
+class RequestMetrics {
+
+    // Endpoint name to its numbers, sorted so reports come out in a stable order
+    private final Map<String, EndpointStats> endpoints = new TreeMap<>();
+
+    // Starts timing one try of a request to endpoint. Call this right before adding the request
+    // to Volley's queue.
+    Call begin(String endpoint) {
+        return new Call(nameOf(endpoint));
+    }
+
+    // Returns a table of every endpoint seen so far with p50 and p99 of each measure.
+    synchronized String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "%-20s %6s %6s  %-15s %-15s %-15s %-15s  %s%n",
+                "endpoint", "count", "errors", "queue p50/p99", "network p50/p99", "parse p50/p99",
+                "bytes p50/p99", "error classes"));
+        for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            out.append(String.format(Locale.US, "%-20s %6d %6d  %-15s %-15s %-15s %-15s  %s%n",
+                    entry.getKey(), stats.count, stats.errorCount(),
+                    millis(stats.queueWait), millis(stats.network), millis(stats.parse),
+                    pair(stats.bytes), stats.errors));
+        }
+        return out.toString();
+    }
+
+    synchronized void reset() {
+        endpoints.clear();
+    }
+
+    private synchronized void record(Call call) {
+        EndpointStats stats = endpoints.get(call.endpoint);
+        if (stats == null) {
+            stats = new EndpointStats();
+            endpoints.put(call.endpoint, stats);
+        }
+
+        stats.count++;
+        if (call.takenNanos != 0) {
+            stats.queueWait.record((call.takenNanos - call.queuedNanos) / 1000);
+        }
+        if (call.networkMicros >= 0) {
+            stats.network.record(call.networkMicros);
+        }
+        if (call.parseMicros >= 0) {
+            stats.parse.record(call.parseMicros);
+        }
+        if (call.bytes >= 0) {
+            stats.bytes.record(call.bytes);
+        }
+        if (call.errorClass != null) {
+            Integer seen = stats.errors.get(call.errorClass);
+            stats.errors.put(call.errorClass, seen == null ? 1 : seen + 1);
+        }
+    }
+
+    // "/posts/by_id/5b4..?x=1" -> "/posts/by_id"
+    private static String nameOf(String endpoint) {
+        int query = endpoint.indexOf('?');
+        if (query >= 0) {
+            endpoint = endpoint.substring(0, query);
+        }
+        int first = endpoint.indexOf('/', 1);
+        if (first < 0) {
+            return endpoint;
+        }
+        int second = endpoint.indexOf('/', first + 1);
+        return second < 0 ? endpoint : endpoint.substring(0, second);
+    }
+
+    private static String millis(Histogram histogram) {
+        return String.format(Locale.US, "%.1f/%.1fms", histogram.percentile(0.5) / 1000.0,
+                histogram.percentile(0.99) / 1000.0);
+    }
+
+    private static String pair(Histogram histogram) {
+        return histogram.percentile(0.5) + "/" + histogram.percentile(0.99);
+    }
+
+    private static class EndpointStats {
+        long count = 0;
+        final Histogram queueWait = new Histogram();
+        final Histogram network = new Histogram();
+        final Histogram parse = new Histogram();
+        final Histogram bytes = new Histogram();
+        // Error class name to how many times it happened
+        final Map<String, Integer> errors = new TreeMap<>();
+
+        long errorCount() {
+            long total = 0;
+            for (int n : errors.values()) {
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    // Call collects the numbers for one try of one request as it goes through its stages, and
+    // records them all when it finishes. Measures that did not happen (e.g. no parse after a
+    // network error) are left out rather than counted as zero.
+    class Call {
+        private final String endpoint;
+        private final long queuedNanos = System.nanoTime();
+        private volatile long takenNanos = 0;
+        private volatile long networkMicros = -1;
+        private volatile long parseMicros = -1;
+        private volatile long bytes = -1;
+        private volatile String errorClass = null;
+        private boolean finished = false;
+
+        private Call(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        // A network thread took the request off the queue
+        void taken() {
+            if (takenNanos == 0) {
+                takenNanos = System.nanoTime();
+            }
+        }
+
+        // The HTTP exchange is done
+        void received(NetworkResponse response) {
+            networkMicros = response.networkTimeMs * 1000;
+            bytes = response.data == null ? 0 : response.data.length;
+        }
+
+        // Parsing took from startNanos until now
+        void parsed(long startNanos) {
+            parseMicros = (System.nanoTime() - startNanos) / 1000;
+        }
+
+        // Records the try. Only the first call to finish or fail counts.
+        void finish() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            record(this);
+        }
+
+        // Records the try as failed with error. Parse failures count by their own class, like
+        // JSONException, since they never became VolleyErrors on the network.
+        void fail(Throwable error) {
+            errorClass = error.getClass().getSimpleName();
+            if (error instanceof VolleyError && ((VolleyError) error).networkResponse != null) {
+                received(((VolleyError) error).networkResponse);
+            }
+            finish();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import com.android.volley.RequestQueue;
+
+/*
+ * RequestScope ties BackendClient requests to the screen that made them. An activity gets one from
+ * BackendClient.newScope() when it is created, passes it to the BackendClient methods that fetch
+ * data for it, and calls cancel() when it is destroyed.
+ *
+ * Cancelling drops everything the scope still has going: requests waiting in the queue or on the
+ * network are cancelled in Volley, responses that already came back are not parsed, and callbacks
+ * that were about to run are skipped. So after cancel() returns, none of the scope's callbacks will
+ * be called, and they cannot touch views that are gone.
+ *
+ * A scope cannot be reopened. Passing null instead of a scope means the request is not cancelled
+ * with any screen, which is what writes like createPost want anyway.
+ */
+public class RequestScope {
+
+    private final RequestQueue queue;
+    private final String name;
+
+    // Read from the parse thread as well as the main thread
+    private volatile boolean cancelled = false;
+
+    RequestScope(RequestQueue queue, String name) {
+        this.queue = queue;
+        this.name = name;
+    }
+
+    // Cancels every request made with this scope. Must be called on the main thread.
+    public void cancel() {
+        cancelled = true;
+        // Volley matches requests by their tag, which BackendClient sets to the scope
+        queue.cancelAll(this);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestScope(" + name + (cancelled ? ", cancelled)" : ")");
+    }
+}
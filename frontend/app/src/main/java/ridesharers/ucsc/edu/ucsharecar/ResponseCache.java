@@ -0,0 +1,199 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/*
+ * ResponseCache keeps the last good response body of GET requests on disk, so that
+ * BackendClient.GenericRequest can show it right away while it asks the server for a fresh copy.
+ *
+ * The server's validator (ETag) for a response is saved with it, so the request can be made
+ * conditional and a 304 Not Modified answered from disk.
+ *
+ * Each response is one file in the app's cache directory, named after its key. The first line of
+ * the file is the validator, which may be empty, and the rest is the body exactly as the server
+ * sent it, which may be JSON or PostWire's binary format. Android may delete these files when it
+ * is low on space, which is fine -- a missing entry just means we wait on the network like
+ * before.
+ *
+ * Every post looked up by id and every search gets its own entry, so the cache is bounded like
+ * post_cache.js on the server: at most maxEntries files and maxBytes in all. After each write the
+ * least recently used files are deleted until it fits. A file's modified time is its last use,
+ * since reading an entry touches it.
+ *
+ * Reads happen on the thread that calls get, which for BackendClient is its parse thread. Writes,
+ * trimming and clearing happen in order on a background thread.
+ */
+class ResponseCache {
+
+    private static final String TAG = "UCShareCar_RespCache";
+    private static final String DIR = "responses";
+
+    private File dir;
+    private Executor writer = Executors.newSingleThreadExecutor();
+    private final int maxEntries;
+    private final long maxBytes;
+
+    ResponseCache(Context context, int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        dir = new File(context.getCacheDir(), DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create response cache directory");
+        }
+    }
+
+    // Returns the saved response for key, or null if there is none.
+    Entry get(String key) {
+        File file = fileFor(key);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            int newline = 0;
+            while (newline < read && data[newline] != '\n') {
+                newline++;
+            }
+            if (newline == read) {
+                return null;
+            }
+            String validator = new String(data, 0, newline, "UTF-8");
+            // Mark it as used, for trim()
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                Log.d(TAG, "Could not mark cached response for "+key+" as used");
+            }
+            return new Entry(Arrays.copyOfRange(data, newline + 1, read),
+                    validator.isEmpty() ? null : validator);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached response for "+key+": "+e.toString());
+            return null;
+        }
+    }
+
+    // Saves body and its validator (which may be null) for key in the background, replacing what
+    // was there.
+    void put(String key, final byte[] body, final String validator) {
+        final File file = fileFor(key);
+        if (file == null) {
+            return;
+        }
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Write to a temp file and rename so a reader never sees half a response
+                File tmp = new File(file.getPath() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(((validator == null ? "" : validator) + "\n").getBytes("UTF-8"));
+                    out.write(body);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write cached response: "+e.toString());
+                    return;
+                }
+                if (!tmp.renameTo(file)) {
+                    Log.w(TAG, "Failed to move cached response into place");
+                    return;
+                }
+                trim();
+            }
+        });
+    }
+
+    // Deletes the least recently used responses until there are at most maxEntries of them,
+    // taking at most maxBytes. Runs on the writer thread.
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        if (files.length <= maxEntries && bytes <= maxBytes) {
+            return;
+        }
+
+        // Oldest use first. Read the times once, since they can change while we sort.
+        final long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return used[a] < used[b] ? -1 : (used[a] == used[b] ? 0 : 1);
+            }
+        });
+
+        int count = files.length, evicted = 0;
+        for (int i = 0; i < order.length && (count > maxEntries || bytes > maxBytes); i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                count--;
+                bytes -= length;
+                evicted++;
+            }
+        }
+        Log.d(TAG, "Evicted "+evicted+" cached responses, "+count+" left in "+bytes+" bytes");
+    }
+
+    // Deletes every saved response. Used when the session ends, since responses are per user.
+    void clear() {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Failed to delete cached response "+file.getName());
+                    }
+                }
+            }
+        });
+    }
+
+    static class Entry {
+        final byte[] body;
+        final String validator;
+
+        Entry(byte[] body, String validator) {
+            this.body = body;
+            this.validator = validator;
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            return new File(dir, URLEncoder.encode(key, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, "Could not name cache file for "+key);
+            return null;
+        }
+    }
+}
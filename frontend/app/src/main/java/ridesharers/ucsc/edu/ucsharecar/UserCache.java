@@ -0,0 +1,202 @@
+package ridesharers.ucsc.edu.ucsharecar;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * UserCache holds the UserInfo objects BackendClient has looked up, keyed by user id.
+ *
+ * It is bounded in two ways. It keeps at most maxEntries users, evicting the least recently used
+ * one when it is full, and it forgets users older than maxAgeMillis so that bans and phone number
+ * changes eventually get picked up.
+ *
+ * The cache is saved to its own SharedPreferences file every time it changes, once per batch for
+ * putAll, and is read back the first time it is used after a restart. That way names can be shown
+ * on a cold start without waiting on the network.
+ *
+ * Hits, misses and evictions are counted so we can tell if the limits are sensible. Users are
+ * looked up on the main thread but saved from BackendClient's parse thread, so every method is
+ * synchronized.
+ */
+class UserCache {
+
+    private static final String TAG = "UCShareCar_UserCache";
+
+    // Shared preferences identifier string and key
+    private static final String PREFS = "ridesharers.ucsc.edu.ucsharecar.users";
+    private static final String USERS_KEY = "users";
+
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    private SharedPreferences storage;
+
+    // Null until the first time the cache is used, when it is loaded from storage. Iteration order
+    // is least recently used first.
+    private LinkedHashMap<String, Entry> entries = null;
+
+    private int hits = 0, misses = 0, evictions = 0;
+
+    UserCache(Context context, int maxEntries, long maxAgeMillis) {
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+        this.storage = context.getSharedPreferences(PREFS, 0);
+    }
+
+    // Returns the cached user with the given id, or null if there is no fresh copy.
+    synchronized UserInfo get(String id) {
+        load();
+
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry)) {
+            Log.d(TAG, "Cached user "+id+" is too old, dropping it");
+            entries.remove(id);
+            evictions++;
+            misses++;
+            save();
+            return null;
+        }
+
+        hits++;
+        return entry.user;
+    }
+
+    // Returns true if there is a fresh copy of the user. Unlike get, this does not count as a hit
+    // or a miss, or as a use for the LRU order.
+    synchronized boolean contains(String id) {
+        load();
+        Entry entry = entries.get(id);
+        return entry != null && !isExpired(entry);
+    }
+
+    // Saves a user, replacing any older copy, and evicts the least recently used users if needed.
+    synchronized void put(UserInfo user) {
+        if (user.getId() == null) {
+            return;
+        }
+        load();
+
+        entries.put(user.getId(), new Entry(user, new Date().getTime()));
+        trim();
+        save();
+    }
+
+    // Saves many users like put, but writes them to storage once instead of once per user, since
+    // every save writes out the whole cache.
+    synchronized void putAll(Collection<UserInfo> users) {
+        load();
+
+        long now = new Date().getTime();
+        for (UserInfo user : users) {
+            if (user.getId() != null) {
+                entries.put(user.getId(), new Entry(user, now));
+            }
+        }
+        trim();
+        save();
+    }
+
+    synchronized int getHits() {
+        return hits;
+    }
+
+    synchronized int getMisses() {
+        return misses;
+    }
+
+    synchronized int getEvictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return new Date().getTime() - entry.fetchedAt > maxAgeMillis;
+    }
+
+    // Drops expired users, then the least recently used ones until we fit in maxEntries.
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (isExpired(entry) || entries.size() > maxEntries) {
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    // Reads the saved users from storage the first time we need them.
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true /* access order, for LRU */);
+
+        String saved = storage.getString(USERS_KEY, null);
+        if (saved == null) {
+            return;
+        }
+
+        try {
+            JSONArray array = new JSONArray(saved);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject raw = array.getJSONObject(i);
+                UserInfo user = new UserInfo(raw.getJSONObject("user"));
+                entries.put(user.getId(), new Entry(user, raw.getLong("fetched_at")));
+            }
+            Log.d(TAG, "Loaded "+entries.size()+" users from storage");
+        } catch (JSONException e) {
+            Log.w(TAG, "Saved user cache is corrupt, starting empty: "+e.toString());
+            entries.clear();
+        }
+        trim();
+    }
+
+    // Writes all users to storage. apply() does the disk write in the background.
+    private void save() {
+        JSONArray array = new JSONArray();
+        try {
+            for (Entry entry : entries.values()) {
+                JSONObject raw = new JSONObject();
+                raw.put("user", entry.user.getJSON());
+                raw.put("fetched_at", entry.fetchedAt);
+                array.put(raw);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to save user cache: "+e.toString());
+            return;
+        }
+
+        SharedPreferences.Editor editor = storage.edit();
+        editor.putString(USERS_KEY, array.toString());
+        editor.apply();
+    }
+
+    private static class Entry {
+        final UserInfo user;
+        final long fetchedAt;
+
+        Entry(UserInfo user, long fetchedAt) {
+            this.user = user;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package ridesharers.ucsc.edu.ucsharecar;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class UserInfo {
 
     //This class extracts user information from the backend.
@@ -25,6 +29,42 @@ public class UserInfo {
         }
     }
 
+    // Reads a user straight from a JsonReader positioned at the user's object. Fields we do not
+    // know about are skipped.
+    UserInfo(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (field) {
+                case "_id": id = reader.nextString(); break;
+                case "email": email = reader.nextString(); break;
+                case "name": name = reader.nextString(); break;
+                case "banned": banned = reader.nextBoolean(); break;
+                case "phnum": phoneNumber = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    public JSONObject getJSON() throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put("email", email);
+        res.put("name", name);
+        res.put("banned", banned);
+        if (phoneNumber != null) {
+            res.put("phnum", phoneNumber);
+        }
+        if (id != null) {
+            res.put("_id", id);
+        }
+        return res;
+    }
+
     public boolean isBanned() {
         return banned;
     }